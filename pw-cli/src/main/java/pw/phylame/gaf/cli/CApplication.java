@@ -19,39 +19,433 @@
 package pw.phylame.gaf.cli;
 
 import org.apache.commons.cli.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import pw.phylame.gaf.core.Application;
+import pw.phylame.gaf.core.GafEvents;
+import pw.phylame.gaf.core.Metrics;
+import pw.phylame.gaf.core.PluginEntry;
+import pw.phylame.gaf.core.Timeline;
 
+import java.io.File;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Command line application.
+ * <p>Options are made once when started, arguments are parsed and commands are performed
+ * in an invocation, which has isolated context, inputs and commands.
+ * <p>Invocations can be performed in current JVM by {@link #invoke(String[], InputStream, PrintStream, PrintStream)}.
+ * <p>With system property <tt>pw.gaf.daemon=true</tt>, the application runs as daemon serving
+ * invocations from {@link CClient} concurrently in a warm JVM. In an invocation, {@link #exit(int)}
+ * finishes the invocation instead of exiting JVM, and standard streams are routed to the client,
+ * commands should use {@link #getWorkingDirectory()} and {@link #getEnvironment()} instead of
+ * current directory and environment of the process.
+ */
 public abstract class CApplication extends Application {
+    private static final Log LOG = LogFactory.getLog(CApplication.class);
+
+    /**
+     * Name of system property for running as daemon.
+     */
+    public static final String DAEMON_PROPERTY = "pw.gaf.daemon";
+
+    /**
+     * Name of system property for format of progress, <tt>terminal</tt> or <tt>plain</tt>.
+     * <p>If not specified, progress is drawn in place when standard error of the process is
+     * known as a terminal, otherwise machine-readable lines are printed.
+     */
+    public static final String PROGRESS_PROPERTY = "pw.gaf.progress";
+
+    /**
+     * Maximum number of inputs performed at the same time by {@link #processInputs(CInputCommand)}.
+     */
+    public static int inputParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum number of inputs read but not reported by {@link #processInputs(CInputCommand)}.
+     */
+    public static int inputWindow = 1024;
+
+    /**
+     * Number of threads walking directories for expanding inputs.
+     */
+    public static int walkParallelism = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Maximum number of files found but not taken when expanding inputs.
+     */
+    public static int walkQueueSize = 1024;
+
+    /**
+     * Default maximum number of values buffered in each {@link CChannel} of an invocation.
+     */
+    public static int channelCapacity = 256;
+
+    /**
+     * Interval in milliseconds of redrawing progress line on terminal.
+     */
+    public static long progressInterval = 200;
+
+    /**
+     * Interval in milliseconds of printing progress lines when not on terminal.
+     */
+    public static long progressRecordInterval = 10000;
+
+    /**
+     * Whether inputs of incremental commands are skipped if not changed,
+     * see {@link CInputCommand#getIncrementalKeys()}.
+     */
+    public static boolean incrementalEnabled = true;
+
+    /**
+     * Directory of incremental caches in home of the application.
+     */
+    public static String incrementalDirectory = "incremental";
+
+    /**
+     * Long name of option for deadline of invocation, like <tt>timeout</tt> for <tt>--timeout 1.5s</tt>,
+     * <tt>null</tt> by default for not adding the option.
+     * <p>Value is a number with optional unit <tt>ms</tt>, <tt>s</tt>, <tt>m</tt> or <tt>h</tt>,
+     * in seconds by default.
+     */
+    public static String timeoutOption = null;
+
+    /**
+     * Whether SIGINT cancels the invocation of arguments instead of terminating immediately,
+     * the second SIGINT exits the application.
+     */
+    public static boolean interruptHandling = true;
+
+    /**
+     * Long name of option for printing profile of invocation to standard error, like <tt>profile</tt>,
+     * <tt>null</tt> by default for not adding the option.
+     * <p>The option is not added if the application has option of the same name.
+     */
+    public static String profileOption = null;
+
+    /**
+     * Long name of option for writing profile of invocation to JSON file, like <tt>json-profile</tt>,
+     * <tt>null</tt> by default for not adding the option.
+     * <p>The option is not added if the application has option of the same name.
+     */
+    public static String profileJsonOption = null;
+
+    private ForkJoinPool walkPool = null;
+
+    private final Map<String, CIncrementalCache> incrementalCaches = new HashMap<>();
+
     protected CApplication(String name, String version, String[] args) {
         super(name, version, args);
     }
 
     public Map<String, Object> getContext() {
-        return context;
+        return currentInvocation().context;
+    }
+
+    /**
+     * Gets typed context of current invocation, values of {@link CContextKey} are stored in it.
+     *
+     * @return the context
+     */
+    public CContext getTypedContext() {
+        return currentInvocation().typedContext;
+    }
+
+    /**
+     * Gets cancellation token of current invocation.
+     *
+     * @return the token
+     */
+    public CCancellation getCancellation() {
+        return currentInvocation().cancellation;
+    }
+
+    CChannel.Pipe pipeOf(CChannel<?> channel) {
+        return currentInvocation().channels.get(channel);
     }
 
     public String[] getInputs() {
-        return inputs;
+        return currentInvocation().inputs;
+    }
+
+    /**
+     * Returns iterator of inputs of current invocation, inputs are read lazily.
+     * <p>Argument <tt>@path</tt> is expanded to lines of the file, and argument <tt>-</tt>
+     * is expanded to lines of standard input, empty lines are skipped.
+     * <p>The iterator throws {@link java.io.UncheckedIOException} if failed to read inputs.
+     *
+     * @return the iterator
+     */
+    public Iterator<String> inputIterator() {
+        CInvocation invocation = currentInvocation();
+        return new CInputPipeline.Inputs(invocation.inputs, this::resolveFile, invocation.in);
+    }
+
+    /**
+     * Returns iterator of inputs of current invocation with directories and glob patterns expanded.
+     * <p>Existing directory is expanded to all files in it, and input containing glob characters
+     * like <tt>src/**&#47;*.java</tt> is expanded to matched files, subtrees are walked in parallel
+     * and files are streamed lazily in undetermined order.
+     * Patterns added by {@link #addInputInclude(String)} and {@link #addInputExclude(String)}
+     * are applied during the walk.
+     * <p>The iterator is {@link java.io.Closeable}, command stopping before it exhausted should close it
+     * to cancel the walk, otherwise the walk is cancelled when current invocation finished.
+     *
+     * @return the iterator
+     */
+    public Iterator<String> expandedInputIterator() {
+        CInputExpander expander = newExpander((CInputPipeline.Inputs) inputIterator());
+        currentInvocation().resources.add(expander);
+        return expander;
+    }
+
+    /**
+     * Adds glob pattern of files included when expanding inputs.
+     * <p>Pattern containing <tt>/</tt> matches path relative to the walked directory,
+     * otherwise matches file name.
+     *
+     * @param pattern the pattern
+     */
+    public void addInputInclude(String pattern) {
+        currentInvocation().includes.add(pattern);
+    }
+
+    /**
+     * Adds glob pattern of files and directories excluded when expanding inputs,
+     * excluded directories are not walked.
+     *
+     * @param pattern the pattern
+     * @see #addInputInclude(String)
+     */
+    public void addInputExclude(String pattern) {
+        currentInvocation().excludes.add(pattern);
+    }
+
+    private CInputExpander newExpander(CInputPipeline.Inputs inputs) {
+        CInvocation invocation = currentInvocation();
+        return new CInputExpander(inputs, this::resolveFile, walkPool(), walkQueueSize,
+                invocation.includes, invocation.excludes,
+                (path, e) -> error("cannot read directory: " + path, e));
+    }
+
+    private synchronized ForkJoinPool walkPool() {
+        if (walkPool == null) {
+            walkPool = new ForkJoinPool(Math.max(1, walkParallelism), pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("walker-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+            addCleanup(walkPool::shutdownNow);
+        }
+        return walkPool;
+    }
+
+    /**
+     * Performs the command for each input of current invocation.
+     * <p>Inputs are read lazily by {@link #inputIterator()}, and performed by at most
+     * {@link #inputParallelism} workers. Reading is blocked while {@link #inputWindow} inputs
+     * are not reported, so memory is bounded regardless of number of inputs.
+     * <p>Inputs are expanded by {@link #expandedInputIterator()} if
+     * {@link CInputCommand#isExpandingInputs()} returns <tt>true</tt>.
+     *
+     * @param command the command
+     * @return minimum status of the inputs
+     */
+    public int processInputs(CInputCommand command) {
+        CInvocation invocation = currentInvocation();
+        String name = commandNames.getOrDefault(command, "default");
+        CIncrementalCache cache = null;
+        CIncrementalCache.Session session = null;
+        String[] keys = command.getIncrementalKeys();
+        if (incrementalEnabled && keys != null) {
+            cache = incrementalCache(name);
+            session = cache.session(variantOf(name, keys, invocation), command.isContentHashed());
+        }
+        CInputPipeline pipeline = new CInputPipeline(this, command, getExecutors().getIOExecutor(),
+                this::bindInvocation, inputParallelism, inputWindow, session,
+                invocation.profile != null ? invocation.profile.entry("inputs", name) : null);
+        try (CInputPipeline.Inputs inputs = new CInputPipeline.Inputs(invocation.inputs, this::resolveFile,
+                invocation.in);
+             CInputExpander expander = command.isExpandingInputs() ? newExpander(inputs) : null) {
+            return pipeline.run(expander != null ? expander : inputs);
+        } catch (IOException e) {
+            error("cannot close inputs", e);
+            return -1;
+        } finally {
+            if (cache != null) {
+                cache.flush();
+                getMetrics().counter("gaf_incremental_skipped_total", "command", name).add(pipeline.getSkipped());
+            }
+        }
+    }
+
+    private synchronized CIncrementalCache incrementalCache(String name) {
+        CIncrementalCache cache = incrementalCaches.get(name);
+        if (cache == null) {
+            String fileName = name.replaceAll("[^\\w.-]", "_") + ".cache";
+            cache = new CIncrementalCache(new File(new File(getHome(), incrementalDirectory), fileName));
+            incrementalCaches.put(name, cache);
+            addCleanup(cache::close);
+        }
+        return cache;
+    }
+
+    // digest of the command and context values affecting results
+    private static String variantOf(String name, String[] keys, CInvocation invocation) {
+        StringBuilder b = new StringBuilder(name);
+        for (String key : keys) {
+            Object value = invocation.context.get(key);
+            b.append('\n').append(key).append('=').append(Arrays.deepToString(new Object[]{value}));
+        }
+        return CIncrementalCache.digest(b.toString());
+    }
+
+    // primary invocation keeps the original streams, must be created before routing
+    private void routeStandardStreams() {
+        primaryInvocation();
+        CStreams.install(invocation::get);
+    }
+
+    // binds invocation of current thread to the task, the task is interrupted when cancelled
+    private Runnable bindInvocation(Runnable task) {
+        CInvocation current = currentInvocation();
+        return () -> {
+            CInvocation previous = invocation.get();
+            invocation.set(current);
+            current.cancellation.attach();
+            try {
+                task.run();
+            } finally {
+                current.cancellation.detach();
+                invocation.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Starts reporting progress of current invocation to its standard error.
+     * <p>Invocations served by daemon are not on terminal.
+     *
+     * @param name name of the progress
+     * @return the progress, should be closed when finished
+     */
+    public CProgress startProgress(String name) {
+        CInvocation current = currentInvocation();
+        String format = System.getProperty(PROGRESS_PROPERTY);
+        boolean terminal = format != null ? "terminal".equals(format)
+                : current == primaryInvocation() && isErrorTerminal();
+        return new CProgress(name, current.err, terminal, getExecutors().getScheduler(),
+                terminal ? progressInterval : progressRecordInterval);
+    }
+
+    private static volatile Boolean errorTerminal = null;
+
+    // whether standard error of the process is a terminal, false if unknown
+    private static boolean isErrorTerminal() {
+        Boolean terminal = errorTerminal;
+        if (terminal == null) {
+            terminal = false;
+            if (!"dumb".equals(System.getenv("TERM"))) {
+                try {   // System.console() checks standard input and output only
+                    String target = Files.readSymbolicLink(Paths.get("/proc/self/fd/2")).toString();
+                    terminal = target.startsWith("/dev/pts/") || target.startsWith("/dev/tty");
+                } catch (IOException | UnsupportedOperationException | SecurityException e) {
+                    LOG.debug("cannot detect terminal of standard error", e);
+                }
+            }
+            errorTerminal = terminal;
+        }
+        return terminal;
+    }
+
+    /**
+     * Gets working directory of current invocation.
+     *
+     * @return the directory
+     */
+    public File getWorkingDirectory() {
+        return currentInvocation().workingDirectory;
+    }
+
+    /**
+     * Gets environment variables of current invocation.
+     *
+     * @return the environment
+     */
+    public Map<String, String> getEnvironment() {
+        return currentInvocation().environment;
+    }
+
+    /**
+     * Resolves path of file against working directory of current invocation.
+     *
+     * @param path the path
+     * @return the file
+     */
+    public File resolveFile(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(getWorkingDirectory(), path);
+    }
+
+    private CInvocation currentInvocation() {
+        CInvocation current = invocation.get();
+        return current != null ? current : primaryInvocation();
+    }
+
+    private synchronized CInvocation primaryInvocation() {
+        if (primary == null) {
+            primary = new CInvocation(getArguments(), new File("").getAbsoluteFile(), System.getenv(),
+                    System.in, System.out, System.err);
+        }
+        return primary;
     }
 
     public void addOption(Option option, CAction action) {
         options.addOption(option);
+        parser.invalidate();
         actions.put(option, action);
+        if (action instanceof CCommand) {
+            commandNames.put((CCommand) action, option.getOpt() != null ? option.getOpt() : option.getLongOpt());
+        }
     }
 
     public void addOptionGroup(OptionGroup group) {
         options.addOptionGroup(group);
+        parser.invalidate();
+        optionGrouped = true;
     }
 
     protected abstract void makeOptions();
 
+    /**
+     * Gets parser of options, the default parser compiles options once and is shared
+     * by invocations.
+     *
+     * @return the parser
+     */
     protected CommandLineParser getCommandLineParser() {
-        return new DefaultParser();
+        return parser;
     }
 
     protected void onOptionError(ParseException ex) {
@@ -59,31 +453,175 @@ public abstract class CApplication extends Application {
         exit(-1);
     }
 
-    private void parseOptions() {
+    private void parseOptions(CInvocation invocation) {
         CommandLine cmd = null;
         try {
-            cmd = getCommandLineParser().parse(options, getArguments());
+            if (!optionGrouped) {
+                cmd = getCommandLineParser().parse(options, invocation.args);
+            } else {
+                synchronized (options) {    // selection of groups is kept in options
+                    cmd = getCommandLineParser().parse(options, invocation.args);
+                }
+            }
         } catch (ParseException ex) {
             onOptionError(ex);
             exit(-1);
         }
         assert cmd != null;
+        boolean printed = profileFlag != null && cmd.hasOption(profileFlag.getLongOpt());
+        String path = profileJsonFlag != null ? cmd.getOptionValue(profileJsonFlag.getLongOpt()) : null;
+        if (printed || path != null) {
+            invocation.profile = new CProfile(path != null ? resolveFile(path) : null);
+        }
         for (Option option : cmd.getOptions()) {
+            String key = option.getOpt() != null ? option.getOpt() : option.getLongOpt();
+            activatePlugins(PluginEntry.COMMAND_TRIGGER + key);
             CAction action = actions.get(option);
             if (action instanceof CInitializer) {
-                ((CInitializer) action).perform(this, cmd);
+                long[] sample = invocation.profile != null ? CProfile.sample() : null;
+                try {
+                    ((CInitializer) action).perform(this, cmd);
+                } finally {
+                    if (sample != null) {
+                        invocation.profile.entry("init", key).add(sample);
+                    }
+                }
             } else {
-                commands.add((CCommand) action);
+                invocation.commands.add((CCommand) action);
 
             }
         }
-        inputs = cmd.getArgs();
+        invocation.inputs = cmd.getArgs();
     }
 
     @Override
     protected void onStart() {
+        started = true;
         super.onStart();
-        makeOptions();
+        ensureOptions();
+    }
+
+    // invokes onStart if not started by start()
+    private synchronized void ensureStarted() {
+        if (!started) {
+            started = true;
+            try (Timeline.Span span = Timeline.begin("onStart")) {
+                onStart();
+            }
+        }
+    }
+
+    private synchronized void ensureOptions() {
+        if (!optionsMade) {
+            try (Timeline.Span span = Timeline.begin("makeOptions")) {
+                makeOptions();
+            }
+            if (timeoutOption != null && !options.hasOption(timeoutOption)) {
+                addOption(Option.builder().longOpt(timeoutOption).hasArg().argName("duration")
+                        .desc("cancel commands after the duration").build(), (CInitializer) this::setTimeout);
+            }
+            // profile is created before initializers performed
+            if (profileOption != null && !options.hasOption(profileOption)) {
+                profileFlag = Option.builder().longOpt(profileOption)
+                        .desc("print profile of commands to standard error").build();
+                addOption(profileFlag, (CInitializer) (app, cmd) -> {
+                });
+            }
+            if (profileJsonOption != null && !options.hasOption(profileJsonOption)) {
+                profileJsonFlag = Option.builder().longOpt(profileJsonOption).hasArg().argName("file")
+                        .desc("write profile of commands to JSON file").build();
+                addOption(profileJsonFlag, (CInitializer) (app, cmd) -> {
+                });
+            }
+            for (Option option : options.getOptions()) {
+                if (options.getOptionGroup(option) != null) {
+                    optionGrouped = true;
+                    break;
+                }
+            }
+            optionsMade = true;
+        }
+    }
+
+    private void setTimeout(CApplication app, CommandLine cmd) {
+        String value = cmd.getOptionValue(timeoutOption);
+        long timeout;
+        try {
+            timeout = parseDuration(value);
+        } catch (IllegalArgumentException e) {
+            error("invalid timeout: " + value);
+            exit(-1);
+            return;
+        }
+        currentInvocation().cancellation.setDeadline(timeout, TimeUnit.NANOSECONDS, getExecutors().getScheduler());
+    }
+
+    // parses duration like 30, 1.5s, 500ms, 2m or 1h to nanoseconds
+    static long parseDuration(String text) {
+        String s = text.trim();
+        long unit;
+        if (s.endsWith("ms")) {
+            unit = TimeUnit.MILLISECONDS.toNanos(1);
+            s = s.substring(0, s.length() - 2);
+        } else if (s.endsWith("s")) {
+            unit = TimeUnit.SECONDS.toNanos(1);
+            s = s.substring(0, s.length() - 1);
+        } else if (s.endsWith("m")) {
+            unit = TimeUnit.MINUTES.toNanos(1);
+            s = s.substring(0, s.length() - 1);
+        } else if (s.endsWith("h")) {
+            unit = TimeUnit.HOURS.toNanos(1);
+            s = s.substring(0, s.length() - 1);
+        } else {
+            unit = TimeUnit.SECONDS.toNanos(1);
+        }
+        double value = Double.parseDouble(s);     // NumberFormatException is IllegalArgumentException
+        if (!(value > 0) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("duration must be positive: " + text);
+        }
+        return (long) Math.min(Long.MAX_VALUE / 2, value * unit);
+    }
+
+    /**
+     * Invokes the application with specified arguments in current thread, using standard
+     * streams of the process.
+     *
+     * @param args the arguments
+     * @return exit status
+     * @see #invoke(String[], InputStream, PrintStream, PrintStream)
+     */
+    public int invoke(String[] args) {
+        return invoke(args, null, null, null);
+    }
+
+    /**
+     * Invokes the application with specified arguments in current thread.
+     * <p>If the application is not started by {@link #start()}, {@link #onStart()} is invoked
+     * once at first time, then arguments are parsed and commands are performed
+     * with isolated context, inputs and commands. {@link #exit(int)} finishes the invocation
+     * and its status is returned, the application and JVM are not terminated.
+     * <p>Invocations can be performed concurrently in different threads. Standard streams of
+     * the process are routed to the specified streams in the invoking thread, and asynchronous
+     * console output is disabled for routing echo and error output to the streams.
+     *
+     * @param args the arguments
+     * @param in   standard input, <tt>null</tt> for the process input
+     * @param out  standard output, <tt>null</tt> for the process output
+     * @param err  standard error, <tt>null</tt> for the process error
+     * @return exit status
+     */
+    public int invoke(String[] args, InputStream in, PrintStream out, PrintStream err) {
+        if (args == null) {
+            throw new NullPointerException("args");
+        }
+        ensureStarted();
+        if (in != null || out != null || err != null) {
+            setAsyncOutput(false);      // asynchronous console writes to the process streams
+            routeStandardStreams();
+        }
+        CInvocation primary = primaryInvocation();
+        return execute(new CInvocation(args, primary.workingDirectory, primary.environment,
+                in != null ? in : primary.in, out != null ? out : primary.out, err != null ? err : primary.err));
     }
 
     /**
@@ -97,32 +635,378 @@ public abstract class CApplication extends Application {
         return true;
     }
 
-    private int dispatchCommand() {
+    private int dispatchCommand(CInvocation invocation) {
         int status = 0;
-        if (!commands.isEmpty()) {
-            for (CCommand command : commands) {
-                status = Math.min(status, command.perform(this));
+        if (!invocation.commands.isEmpty()) {
+            Map<Integer, List<CCommand>> phases = new TreeMap<>();
+            int[] phaseOfCommands = connectStages(invocation);
+            for (int i = 0; i < phaseOfCommands.length; ++i) {
+                phases.computeIfAbsent(phaseOfCommands[i], k -> new ArrayList<>()).add(invocation.commands.get(i));
+            }
+            for (List<CCommand> commands : phases.values()) {
+                status = Math.min(status, performPhase(commands));
             }
         } else if (defaultCommand != null) {
-            status = defaultCommand.perform(this);
+            status = performCommand(defaultCommand);
+        }
+        return status;
+    }
+
+    /**
+     * Creates buffers of channels of the invocation.
+     *
+     * @return phases of commands, connected stages are moved to the lowest phase of them
+     */
+    private static int[] connectStages(CInvocation invocation) {
+        List<CCommand> commands = invocation.commands;
+        int[] phases = new int[commands.size()];
+        // numbers of writers and readers, and the lowest phase of each channel
+        Map<CChannel<?>, int[]> ends = new HashMap<>();
+        for (int i = 0; i < phases.length; ++i) {
+            CCommand command = commands.get(i);
+            phases[i] = command.getPhase();
+            countEnds(ends, command.getOutputChannels(), 0, phases[i]);
+            countEnds(ends, command.getInputChannels(), 1, phases[i]);
+        }
+        if (ends.isEmpty()) {
+            return phases;
+        }
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int i = 0; i < phases.length; ++i) {
+                for (CChannel<?> channel : channelsOf(commands.get(i))) {
+                    int[] end = ends.get(channel);
+                    if (end[2] != phases[i]) {
+                        end[2] = phases[i] = Math.min(end[2], phases[i]);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        for (Map.Entry<CChannel<?>, int[]> entry : ends.entrySet()) {
+            CChannel<?> channel = entry.getKey();
+            int capacity = channel.getCapacity() > 0 ? channel.getCapacity() : Math.max(1, channelCapacity);
+            invocation.channels.put(channel,
+                    new CChannel.Pipe(channel.getName(), capacity, entry.getValue()[0], entry.getValue()[1]));
+        }
+        return phases;
+    }
+
+    private static void countEnds(Map<CChannel<?>, int[]> ends, CChannel<?>[] channels, int side, int phase) {
+        if (channels != null) {
+            for (CChannel<?> channel : channels) {
+                int[] end = ends.computeIfAbsent(channel, k -> new int[]{0, 0, phase});
+                ++end[side];
+                end[2] = Math.min(end[2], phase);
+            }
+        }
+    }
+
+    private static List<CChannel<?>> channelsOf(CCommand command) {
+        List<CChannel<?>> channels = new ArrayList<>();
+        if (command.getOutputChannels() != null) {
+            channels.addAll(Arrays.asList(command.getOutputChannels()));
+        }
+        if (command.getInputChannels() != null) {
+            channels.addAll(Arrays.asList(command.getInputChannels()));
+        }
+        return channels;
+    }
+
+    private static boolean isStage(CCommand command) {
+        CChannel<?>[] inputs = command.getInputChannels(), outputs = command.getOutputChannels();
+        return inputs != null && inputs.length > 0 || outputs != null && outputs.length > 0;
+    }
+
+    /**
+     * Performs commands in one phase, parallel-safe commands are performed concurrently in worker
+     * threads with others performed in current thread. Stages connected by channels are performed
+     * concurrently each in its own thread.
+     * <p>Results are reduced in order of commands, the first exit or exception is thrown after all
+     * commands finished, otherwise the minimum status is returned.
+     */
+    private int performPhase(List<CCommand> commands) {
+        int parallel = 0;
+        for (CCommand command : commands) {
+            if (command.isParallelSafe() || isStage(command)) {
+                ++parallel;
+            }
+        }
+        int status = 0;
+        if (parallel == 0 || commands.size() == 1) {
+            for (CCommand command : commands) {
+                status = Math.min(status, performCommand(command));
+            }
+            return status;
+        }
+        Object[] results = new Object[commands.size()];
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[parallel];
+        Executor executor = getExecutors().getIOExecutor();
+        for (int i = 0, j = 0; i < results.length; ++i) {
+            CCommand command = commands.get(i);
+            int index = i;
+            if (isStage(command)) {     // not in pool for blocking on channels
+                String name = "stage-" + commandNames.getOrDefault(command, "default");
+                futures[j++] = CompletableFuture.runAsync(bindInvocation(() -> {
+                    results[index] = tryPerformStage(command);
+                }), task -> {
+                    Thread thread = new Thread(task, name);
+                    thread.setDaemon(true);
+                    thread.start();
+                });
+            } else if (command.isParallelSafe()) {
+                futures[j++] = CompletableFuture.runAsync(bindInvocation(() -> {
+                    results[index] = tryPerformCommand(command);
+                }), executor);
+            }
+        }
+        for (int i = 0; i < results.length; ++i) {
+            CCommand command = commands.get(i);
+            if (!command.isParallelSafe() && !isStage(command)) {
+                results[i] = tryPerformCommand(command);
+                if (!(results[i] instanceof Integer)) {     // skip following serial commands
+                    break;
+                }
+            }
+        }
+        CompletableFuture.allOf(futures).join();
+        for (Object result : results) {
+            if (result instanceof Integer) {
+                status = Math.min(status, (Integer) result);
+            } else if (result instanceof RuntimeException) {
+                throw (RuntimeException) result;
+            } else if (result instanceof Error) {
+                throw (Error) result;
+            }
         }
         return status;
     }
 
+    private Object tryPerformCommand(CCommand command) {
+        try {
+            return performCommand(command);
+        } catch (RuntimeException | Error e) {
+            return e;
+        }
+    }
+
+    // finishes channels of the stage after performed
+    private Object tryPerformStage(CCommand command) {
+        Object result = tryPerformCommand(command);
+        CInvocation invocation = currentInvocation();
+        if (command.getOutputChannels() != null) {
+            for (CChannel<?> channel : command.getOutputChannels()) {
+                invocation.channels.get(channel).writerFinished(!(result instanceof Integer));
+            }
+        }
+        if (command.getInputChannels() != null) {
+            for (CChannel<?> channel : command.getInputChannels()) {
+                invocation.channels.get(channel).readerFinished();
+            }
+        }
+        return result;
+    }
+
+    private int performCommand(CCommand command) {
+        String name = commandNames.getOrDefault(command, "default");
+        CProfile profile = currentInvocation().profile;
+        long[] sample = profile != null ? CProfile.sample() : null;
+        long start = System.nanoTime();
+        try (GafEvents.Scope event = GafEvents.command("cli", name)) {
+            return command.perform(this);
+        } finally {
+            commandTimers.computeIfAbsent(command,
+                    k -> getMetrics().timer("gaf_command_seconds", "source", "cli", "command", name))
+                    .recordSince(start);
+            if (sample != null) {
+                profile.entry("command", name).add(sample);
+            }
+        }
+    }
+
+    /**
+     * Parses arguments and performs commands of the invocation in current thread.
+     * <p>If the invocation is cancelled, status of the cancellation is returned after commands
+     * finished, exceptions thrown by cancelled commands are ignored.
+     *
+     * @param invocation the invocation
+     * @return exit status
+     */
+    int execute(CInvocation invocation) {
+        CInvocation previous = this.invocation.get();
+        this.invocation.set(invocation);
+        CCancellation cancellation = invocation.cancellation;
+        try {
+            int status;
+            cancellation.attach();
+            try {
+                try (Timeline.Span span = Timeline.begin("parseOptions")) {
+                    parseOptions(invocation);
+                }
+                if (!optionParsed()) {
+                    return -1;
+                }
+                try (Timeline.Span span = Timeline.begin("dispatchCommand")) {
+                    status = dispatchCommand(invocation);
+                }
+            } catch (CInvocation.Exit e) {
+                status = e.status;
+            } catch (RuntimeException e) {
+                if (!cancellation.isCancelled()) {
+                    throw e;
+                }
+                LOG.debug("command cancelled", e);
+                status = -1;
+            } finally {
+                cancellation.detach();
+            }
+            if (cancellation.isCancelled()) {
+                status = cancellation.getStatus();
+                error(status == CCancellation.TIMEOUT_STATUS ? "timed out" : "interrupted");
+            }
+            return status;
+        } finally {
+            closeResources(invocation);
+            cancellation.close();
+            if (invocation.profile != null) {
+                reportProfile(invocation);
+            }
+            this.invocation.set(previous);
+        }
+    }
+
+    private void closeResources(CInvocation invocation) {
+        synchronized (invocation.resources) {
+            for (Closeable resource : invocation.resources) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    LOG.debug("cannot close resource of invocation", e);
+                }
+            }
+            invocation.resources.clear();
+        }
+    }
+
+    private void reportProfile(CInvocation invocation) {
+        File file = invocation.profile.getOutput();
+        if (file == null) {
+            invocation.profile.print(invocation.err);
+            return;
+        }
+        try {
+            invocation.profile.export(file);
+        } catch (IOException e) {
+            error("cannot write profile: " + file, e);
+        }
+    }
+
+    /**
+     * Exits the application.
+     * <p>In an invocation, only the invocation is finished with the status, by throwing an
+     * {@link Error} which must not be caught by commands.
+     *
+     * @param status the exit status
+     */
+    @Override
+    public void exit(int status) {
+        if (invocation.get() != null) {
+            throw new CInvocation.Exit(status);
+        }
+        super.exit(status);
+    }
+
     @Override
     public void run() {
-        parseOptions();
-        if (!optionParsed()) {
-            exit(-1);
+        if (Boolean.getBoolean(DAEMON_PROPERTY)) {
+            setAsyncOutput(false);
+            routeStandardStreams();
+            try {
+                new CDaemon(this).serve();
+            } catch (IOException e) {
+                error("cannot start daemon", e);
+                exit(-1);
+            }
+            exit(0);
         }
-        exit(dispatchCommand());
+        Runnable restore = interruptHandling ? handleInterrupt() : null;
+        int status;
+        try {
+            status = execute(primaryInvocation());
+        } finally {
+            if (restore != null) {      // SIGINT terminates while exiting
+                restore.run();
+            }
+        }
+        exit(status);
     }
 
-    private final Map<String, Object> context = new HashMap<>();
-    private String[] inputs;
+    /**
+     * Handles SIGINT by <tt>sun.misc.Signal</tt>, which is accessed reflectively for not
+     * compiling against internal API. The first SIGINT cancels the invocation, cleanups are
+     * run by exit or shutdown hook.
+     *
+     * @return action restoring previous handler, or <tt>null</tt> if not handled
+     */
+    private Runnable handleInterrupt() {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object signal = signalClass.getConstructor(String.class).newInstance("INT");
+            Object handler = Proxy.newProxyInstance(CApplication.class.getClassLoader(), new Class<?>[]{handlerClass},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "handle":
+                                signalInterrupted();
+                                return null;
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return "SIGINT handler of " + getName();
+                        }
+                    });
+            Method handle = signalClass.getMethod("handle", signalClass, handlerClass);
+            Object previous = handle.invoke(null, signal, handler);
+            return () -> {
+                try {
+                    handle.invoke(null, signal, previous);
+                } catch (ReflectiveOperationException e) {
+                    LOG.debug("cannot restore SIGINT handler", e);
+                }
+            };
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            LOG.debug("cannot handle SIGINT", e);
+            return null;
+        }
+    }
+
+    private void signalInterrupted() {
+        CCancellation cancellation = primaryInvocation().cancellation;
+        if (cancellation.isCancelled()) {
+            exit(CCancellation.INTERRUPT_STATUS);
+        } else {
+            cancellation.cancel(CCancellation.INTERRUPT_STATUS);
+        }
+    }
 
     protected final Options options = new Options();
     protected CCommand defaultCommand;
+    private final CParser parser = new CParser();
     private final Map<Option, CAction> actions = new HashMap<>();
-    private final List<CCommand> commands = new LinkedList<>();
+    private final Map<CCommand, String> commandNames = new HashMap<>();
+    private final Map<CCommand, Metrics.Histogram> commandTimers = new ConcurrentHashMap<>();
+    private volatile boolean started = false;
+    private boolean optionsMade = false;
+    // built-in options of profile, null if not added
+    private Option profileFlag = null;
+    private Option profileJsonFlag = null;
+    private volatile boolean optionGrouped = false;
+
+    // invocation of current thread, null for primary invocation
+    private final ThreadLocal<CInvocation> invocation = new ThreadLocal<>();
+
+    // invocation of arguments of the application
+    private CInvocation primary;
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cancellation token of one invocation, see {@link CApplication#getCancellation()}.
+ * <p>The invocation is cancelled when its deadline passed or interrupted by user, then threads
+ * performing commands and worker tasks of the invocation are interrupted, and the invocation
+ * returns {@link #getStatus()} after commands finished. Cancellation is cooperative, long-running
+ * commands should check {@link #isCancelled()} or invoke {@link #throwIfCancelled()} periodically.
+ */
+public final class CCancellation {
+    private static final Log LOG = LogFactory.getLog(CCancellation.class);
+
+    /**
+     * Exit status of invocation cancelled by deadline.
+     */
+    public static final int TIMEOUT_STATUS = 124;
+
+    /**
+     * Exit status of invocation interrupted by user.
+     */
+    public static final int INTERRUPT_STATUS = 130;
+
+    private volatile int status = 0;
+
+    private volatile long deadline = 0;
+
+    private ScheduledFuture<?> timer = null;
+
+    // threads performing the invocation to times attached, guarded by itself
+    // task of the invocation may be performed by attached thread, like caller-runs policy
+    private final Map<Thread, Integer> threads = new HashMap<>();
+
+    private final List<Runnable> callbacks = new CopyOnWriteArrayList<>();
+
+    CCancellation() {
+    }
+
+    public boolean isCancelled() {
+        return status != 0;
+    }
+
+    /**
+     * Gets exit status of cancelled invocation.
+     *
+     * @return {@link #TIMEOUT_STATUS} or {@link #INTERRUPT_STATUS}, <tt>0</tt> if not cancelled
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Throws {@link CCancelledException} if cancelled.
+     *
+     * @throws CCancelledException if cancelled
+     */
+    public void throwIfCancelled() throws CCancelledException {
+        int status = this.status;
+        if (status != 0) {
+            throw new CCancelledException(status);
+        }
+    }
+
+    public boolean hasDeadline() {
+        return deadline != 0;
+    }
+
+    /**
+     * Gets remaining time before deadline.
+     *
+     * @param unit unit of the time
+     * @return the time, {@link Long#MAX_VALUE} if no deadline
+     */
+    public long getRemaining(TimeUnit unit) {
+        long deadline = this.deadline;
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Adds callback invoked when cancelled, the callback is invoked immediately if already cancelled.
+     *
+     * @param callback the callback
+     */
+    public void onCancel(Runnable callback) {
+        callbacks.add(callback);
+        if (isCancelled() && callbacks.remove(callback)) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Cancels the invocation, only the first cancellation takes effect.
+     *
+     * @param status exit status of the invocation
+     */
+    public void cancel(int status) {
+        synchronized (threads) {
+            if (this.status != 0) {
+                return;
+            }
+            this.status = status;
+            for (Thread thread : threads.keySet()) {
+                thread.interrupt();
+            }
+        }
+        for (Runnable callback : callbacks) {
+            if (callbacks.remove(callback)) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    LOG.error("cancellation callback failed", e);
+                }
+            }
+        }
+    }
+
+    synchronized void setDeadline(long timeout, TimeUnit unit, ScheduledExecutorService scheduler) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        deadline = System.nanoTime() + unit.toNanos(timeout);
+        timer = scheduler.schedule(() -> cancel(TIMEOUT_STATUS), timeout, unit);
+    }
+
+    /**
+     * Attaches current thread to the invocation, the thread is interrupted when cancelled.
+     * <p>Attaching is nested, the thread is detached by the outermost {@link #detach()}.
+     */
+    void attach() {
+        synchronized (threads) {
+            threads.merge(Thread.currentThread(), 1, Integer::sum);
+            if (status != 0) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Detaches current thread, interrupted status caused by cancellation is cleared.
+     */
+    void detach() {
+        synchronized (threads) {
+            if (threads.computeIfPresent(Thread.currentThread(), (k, n) -> n > 1 ? n - 1 : null) == null
+                    && status != 0) {
+                Thread.interrupted();
+            }
+        }
+    }
+
+    synchronized void close() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+/**
+ * Thrown by {@link CCancellation#throwIfCancelled()} when the invocation is cancelled.
+ */
+public class CCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public CCancelledException(int status) {
+        super(status == CCancellation.TIMEOUT_STATUS ? "timed out" : "interrupted");
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Typed channel streaming values between commands of one invocation.
+ * <p>Commands declare channels by {@link CCommand#getOutputChannels()} and {@link CCommand#getInputChannels()},
+ * such commands are stages of a pipeline, connected stages are performed in the same phase concurrently,
+ * each in its own thread. Values are passed through a bounded buffer of each invocation, so producers
+ * are blocked while the buffer is full.
+ * <p>Usage:
+ * <pre>
+ * static final CChannel&lt;String&gt; LINES = CChannel.of("lines", String.class);
+ *
+ * // in producer
+ * for (String line : lines) {
+ *     if (!LINES.send(app, line)) {
+ *         break;   // no consumer
+ *     }
+ * }
+ *
+ * // in consumer
+ * String line;
+ * while ((line = LINES.receive(app)) != null) {
+ *     // process the line
+ * }
+ * </pre>
+ * The channel is finished when all producers in the invocation finished, and is abandoned when all
+ * consumers finished. If a producer failed, consumers get {@link IllegalStateException} after values
+ * sent before the failure.
+ *
+ * @param <T> type of values
+ */
+public final class CChannel<T> {
+    private final String name;
+    private final Class<T> type;
+    private final int capacity;
+
+    private CChannel(String name, Class<T> type, int capacity) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+        if (type == null) {
+            throw new NullPointerException("type");
+        }
+        this.name = name;
+        this.type = type;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates channel with capacity of {@link CApplication#channelCapacity}.
+     *
+     * @param name name of the channel
+     * @param type type of values
+     * @param <T>  type of values
+     * @return the channel
+     */
+    public static <T> CChannel<T> of(String name, Class<T> type) {
+        return new CChannel<>(name, type, 0);
+    }
+
+    public static <T> CChannel<T> of(String name, Class<T> type, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        return new CChannel<>(name, type, capacity);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * Gets maximum number of values buffered in the channel.
+     *
+     * @return the capacity, <tt>0</tt> for {@link CApplication#channelCapacity}
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sends value to consumers in current invocation, blocked while the channel is full.
+     *
+     * @param app   the application
+     * @param value the value, not <tt>null</tt>
+     * @return <tt>false</tt> if no consumer remains and the value is dropped
+     * @throws IllegalStateException if no command of current invocation declares the channel
+     * @throws CCancelledException   if the invocation is cancelled while waiting
+     */
+    public boolean send(CApplication app, T value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        Pipe pipe = pipeOf(app);
+        try {
+            return pipe.put(type.cast(value));
+        } catch (InterruptedException e) {
+            throw cancelled(app);
+        }
+    }
+
+    /**
+     * Receives value from producers in current invocation, blocked while the channel is empty.
+     *
+     * @param app the application
+     * @return the value, or <tt>null</tt> if all producers finished
+     * @throws IllegalStateException if a producer failed, or no command of current invocation
+     *                               declares the channel
+     * @throws CCancelledException   if the invocation is cancelled while waiting
+     */
+    public T receive(CApplication app) {
+        Pipe pipe = pipeOf(app);
+        try {
+            return type.cast(pipe.take());
+        } catch (InterruptedException e) {
+            throw cancelled(app);
+        }
+    }
+
+    // undeclared channel is not connected, values would be lost silently
+    private Pipe pipeOf(CApplication app) {
+        Pipe pipe = app.pipeOf(this);
+        if (pipe == null) {
+            throw new IllegalStateException("channel not declared by commands of current invocation: " + name);
+        }
+        return pipe;
+    }
+
+    private static CCancelledException cancelled(CApplication app) {
+        Thread.currentThread().interrupt();
+        int status = app.getCancellation().getStatus();
+        return new CCancelledException(status != 0 ? status : CCancellation.INTERRUPT_STATUS);
+    }
+
+    @Override
+    public String toString() {
+        return "CChannel{name=" + name + ", type=" + type.getName() + '}';
+    }
+
+    /**
+     * Buffer of a channel in one invocation.
+     */
+    static final class Pipe {
+        private final String name;
+        private final Object[] items;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private int head = 0;
+        private int count = 0;
+        // stages not finished
+        private int writers;
+        private int readers;
+        private boolean broken = false;
+
+        Pipe(String name, int capacity, int writers, int readers) {
+            this.name = name;
+            this.items = new Object[capacity];
+            this.writers = writers;
+            this.readers = readers;
+        }
+
+        boolean put(Object value) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (count == items.length && readers > 0) {
+                    notFull.await();
+                }
+                if (readers == 0) {
+                    return false;
+                }
+                items[(head + count) % items.length] = value;
+                ++count;
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Object take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (count == 0 && writers > 0) {
+                    notEmpty.await();
+                }
+                if (count == 0) {
+                    if (broken) {
+                        throw new IllegalStateException("producer of channel failed: " + name);
+                    }
+                    return null;
+                }
+                Object value = items[head];
+                items[head] = null;
+                head = (head + 1) % items.length;
+                --count;
+                notFull.signal();
+                return value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void writerFinished(boolean failed) {
+            lock.lock();
+            try {
+                broken |= failed;
+                if (--writers == 0) {
+                    notEmpty.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void readerFinished() {
+            lock.lock();
+            try {
+                if (--readers == 0) {     // values are not received any more
+                    Arrays.fill(items, null);
+                    count = 0;
+                    notFull.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
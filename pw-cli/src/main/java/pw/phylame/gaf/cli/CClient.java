@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Thin client of CLI application running in daemon mode.
+ * <p>The client forwards arguments, working directory, environment and standard streams
+ * to the daemon, and exits with the status of the invocation.
+ * <p>Usage:
+ * <pre>
+ *     java -cp pw-cli.jar pw.phylame.gaf.cli.CClient app_name [arguments...]
+ * </pre>
+ * <p>If the daemon is not running, the client exits with {@link #UNAVAILABLE} for launcher
+ * falling back to start the application normally.
+ * <p>This class depends on JDK only for loading fast.
+ */
+public final class CClient {
+    /**
+     * Name of file in application home containing port and token of the daemon.
+     */
+    public static final String DAEMON_FILE = "daemon.port";
+
+    /**
+     * Exit status when the daemon is not available.
+     */
+    public static final int UNAVAILABLE = 75;
+
+    static final int STDIN = 'I';
+    static final int STDOUT = 'O';
+    static final int STDERR = 'E';
+    static final int EXIT = 'X';
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private CClient() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: CClient app_name [arguments...]");
+            System.exit(2);
+        }
+        String[] arguments = new String[args.length - 1];
+        System.arraycopy(args, 1, arguments, 0, arguments.length);
+        String home = System.getProperty("user.home") + File.separatorChar + "." + args[0].toLowerCase();
+        System.exit(invoke(home, arguments));
+    }
+
+    /**
+     * Invokes the daemon of application with specified home.
+     *
+     * @param home home of the application
+     * @param args the arguments
+     * @return exit status of the invocation, or {@link #UNAVAILABLE} if daemon not available
+     */
+    public static int invoke(String home, String[] args) {
+        String[] daemon;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(home, DAEMON_FILE)), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            daemon = line != null ? line.trim().split("\\s+") : new String[0];
+        } catch (IOException e) {
+            return UNAVAILABLE;
+        }
+        if (daemon.length != 2) {
+            return UNAVAILABLE;
+        }
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(daemon[0]));
+        } catch (IOException | NumberFormatException e) {
+            return UNAVAILABLE;
+        }
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeString(out, daemon[1]);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                writeString(out, arg);
+            }
+            writeString(out, new File("").getAbsolutePath());
+            Map<String, String> env = System.getenv();
+            out.writeInt(env.size());
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+            out.flush();
+
+            Thread pump = new Thread(() -> pumpInput(out), "cclient-stdin");
+            pump.setDaemon(true);
+            pump.start();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+            OutputStream stderr = new FileOutputStream(FileDescriptor.err);
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (true) {
+                int type = in.read();
+                if (type == EXIT) {
+                    return in.readInt();
+                } else if (type == STDOUT || type == STDERR) {
+                    int length = in.readInt();
+                    if (length > buf.length) {
+                        buf = new byte[length];
+                    }
+                    in.readFully(buf, 0, length);
+                    (type == STDOUT ? stdout : stderr).write(buf, 0, length);
+                } else {
+                    throw new IOException("unexpected frame: " + type);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("daemon connection lost: " + e.getMessage());
+            return UNAVAILABLE;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void pumpInput(DataOutputStream out) {
+        byte[] buf = new byte[BUFFER_SIZE];
+        try {
+            int n;
+            while ((n = System.in.read(buf)) != -1) {
+                synchronized (out) {
+                    out.write(STDIN);
+                    out.writeInt(n);
+                    out.write(buf, 0, n);
+                    out.flush();
+                }
+            }
+            synchronized (out) {
+                out.write(STDIN);
+                out.writeInt(0);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+    }
+
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] b = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1 << 24) {
+            throw new IOException("invalid string length: " + length);
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -18,6 +18,50 @@
 
 package pw.phylame.gaf.cli;
 
+/**
+ * Command performed after options parsed.
+ * <p>Commands are performed in ascending order of phase, commands in same phase are performed
+ * in order of options. Parallel-safe commands in same phase are performed concurrently.
+ * <p>Commands connected by {@link CChannel} are stages of a pipeline, performed concurrently in
+ * the lowest phase of connected stages.
+ */
 public interface CCommand extends CAction {
     int perform(CApplication app);
+
+    /**
+     * Tests whether the command can be performed concurrently with other commands.
+     * <p>Parallel-safe command must not depend on effects of other commands in same phase.
+     *
+     * @return <tt>true</tt> if parallel-safe
+     */
+    default boolean isParallelSafe() {
+        return false;
+    }
+
+    /**
+     * Returns phase of the command, command of lower phase is performed before commands of higher phase.
+     *
+     * @return the phase
+     */
+    default int getPhase() {
+        return 0;
+    }
+
+    /**
+     * Returns channels received by the command.
+     *
+     * @return the channels, or <tt>null</tt> if none
+     */
+    default CChannel<?>[] getInputChannels() {
+        return null;
+    }
+
+    /**
+     * Returns channels sent by the command, channels are finished when the command finished.
+     *
+     * @return the channels, or <tt>null</tt> if none
+     */
+    default CChannel<?>[] getOutputChannels() {
+        return null;
+    }
 }
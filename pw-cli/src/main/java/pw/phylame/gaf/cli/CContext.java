@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.util.Arrays;
+
+/**
+ * Typed context of one invocation, values are stored in slots of arrays indexed by
+ * {@link CContextKey}, primitive values are stored without boxing.
+ * <p>Values may be read by concurrent commands without locking, writing is synchronized.
+ */
+public final class CContext {
+    private static final Object[] NO_OBJECTS = {};
+    private static final long[] NO_PRIMITIVES = {};
+
+    // arrays are re-assigned after each writing for publishing
+    private volatile Object[] objects = NO_OBJECTS;
+    private volatile long[] primitives = NO_PRIMITIVES;
+    // bits of set primitive slots
+    private volatile long[] present = NO_PRIMITIVES;
+
+    CContext() {
+    }
+
+    public <T> T get(CContextKey<T> key) {
+        return key.read(this);
+    }
+
+    public <T> void set(CContextKey<T> key, T value) {
+        key.write(this, value);
+    }
+
+    public boolean contains(CContextKey<?> key) {
+        return key.isSet(this);
+    }
+
+    public void remove(CContextKey<?> key) {
+        key.clear(this);
+    }
+
+    public int getInt(CContextKey.OfInt key) {
+        return key.getInt(this);
+    }
+
+    public void setInt(CContextKey.OfInt key, int value) {
+        key.setInt(this, value);
+    }
+
+    public long getLong(CContextKey.OfLong key) {
+        return key.getLong(this);
+    }
+
+    public void setLong(CContextKey.OfLong key, long value) {
+        key.setLong(this, value);
+    }
+
+    public boolean getBoolean(CContextKey.OfBoolean key) {
+        return key.getBoolean(this);
+    }
+
+    public void setBoolean(CContextKey.OfBoolean key, boolean value) {
+        key.setBoolean(this, value);
+    }
+
+    Object getObject(int slot) {
+        Object[] a = objects;
+        return slot < a.length ? a[slot] : null;
+    }
+
+    synchronized void setObject(int slot, Object value) {
+        Object[] a = objects;
+        if (slot >= a.length) {
+            if (value == null) {
+                return;
+            }
+            a = Arrays.copyOf(a, capacityOf(slot));
+        }
+        a[slot] = value;
+        objects = a;
+    }
+
+    boolean hasPrimitive(int slot) {
+        long[] bits = present;
+        int i = slot >>> 6;
+        return i < bits.length && (bits[i] & (1L << slot)) != 0;
+    }
+
+    long getPrimitive(int slot) {
+        long[] a = primitives;
+        return slot < a.length ? a[slot] : 0;
+    }
+
+    synchronized void setPrimitive(int slot, long value) {
+        long[] a = primitives;
+        if (slot >= a.length) {
+            a = Arrays.copyOf(a, capacityOf(slot));
+        }
+        long[] bits = present;
+        int i = slot >>> 6;
+        if (i >= bits.length) {
+            bits = Arrays.copyOf(bits, i + 1);
+        }
+        a[slot] = value;
+        bits[i] |= 1L << slot;
+        primitives = a;
+        present = bits;
+    }
+
+    synchronized void clearPrimitive(int slot) {
+        long[] bits = present;
+        int i = slot >>> 6;
+        if (i < bits.length) {
+            bits[i] &= ~(1L << slot);
+            present = bits;
+        }
+    }
+
+    private static int capacityOf(int slot) {
+        return Math.max(8, Integer.highestOneBit(slot) << 1);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Typed key of value in {@link CContext}.
+ * <p>Each key is assigned a slot when created, so keys should be created once and kept in
+ * static fields, for example:
+ * <pre>
+ * static final CContextKey.OfInt COUNT = CContextKey.ofInt("count", 1);
+ * ...
+ * addOption(Option.builder("n").hasArg().build(), new CFetchInteger("n", COUNT));
+ * ...
+ * int count = COUNT.getInt(app);
+ * </pre>
+ *
+ * @param <T> type of the value
+ */
+public class CContextKey<T> {
+    private static final AtomicInteger OBJECT_SLOTS = new AtomicInteger();
+    private static final AtomicInteger PRIMITIVE_SLOTS = new AtomicInteger();
+
+    private final String name;
+    private final Class<T> type;
+    private final T defaultValue;
+    final int slot;
+
+    private CContextKey(String name, Class<T> type, T defaultValue, int slot) {
+        this.name = name;
+        this.type = type;
+        this.defaultValue = defaultValue;
+        this.slot = slot;
+    }
+
+    public static <T> CContextKey<T> of(String name, Class<T> type) {
+        return of(name, type, null);
+    }
+
+    public static <T> CContextKey<T> of(String name, Class<T> type, T defaultValue) {
+        return new CContextKey<>(name, type, defaultValue, OBJECT_SLOTS.getAndIncrement());
+    }
+
+    public static OfInt ofInt(String name, int defaultValue) {
+        return new OfInt(name, defaultValue);
+    }
+
+    public static OfLong ofLong(String name, long defaultValue) {
+        return new OfLong(name, defaultValue);
+    }
+
+    public static OfBoolean ofBoolean(String name, boolean defaultValue) {
+        return new OfBoolean(name, defaultValue);
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    public final Class<T> getType() {
+        return type;
+    }
+
+    public final T getDefaultValue() {
+        return defaultValue;
+    }
+
+    /**
+     * Gets value of the key in context of current invocation.
+     *
+     * @param app the application
+     * @return the value, or default value if not set
+     */
+    public final T get(CApplication app) {
+        return read(app.getTypedContext());
+    }
+
+    /**
+     * Sets value of the key in context of current invocation.
+     *
+     * @param app   the application
+     * @param value the value
+     * @throws ClassCastException if the value is not instance of type of the key
+     */
+    public final void set(CApplication app, T value) {
+        write(app.getTypedContext(), value);
+    }
+
+    T read(CContext context) {
+        Object value = context.getObject(slot);
+        return value != null ? type.cast(value) : defaultValue;
+    }
+
+    void write(CContext context, T value) {
+        context.setObject(slot, type.cast(value));
+    }
+
+    boolean isSet(CContext context) {
+        return context.getObject(slot) != null;
+    }
+
+    void clear(CContext context) {
+        context.setObject(slot, null);
+    }
+
+    @Override
+    public String toString() {
+        return name + ":" + type.getSimpleName();
+    }
+
+    /**
+     * Key of value stored in primitive slot.
+     */
+    abstract static class Primitive<T> extends CContextKey<T> {
+        private Primitive(String name, Class<T> type, T defaultValue) {
+            super(name, type, defaultValue, PRIMITIVE_SLOTS.getAndIncrement());
+        }
+
+        @Override
+        boolean isSet(CContext context) {
+            return context.hasPrimitive(slot);
+        }
+
+        @Override
+        void clear(CContext context) {
+            context.clearPrimitive(slot);
+        }
+    }
+
+    public static final class OfInt extends Primitive<Integer> {
+        private final int defaultInt;
+
+        private OfInt(String name, int defaultValue) {
+            super(name, Integer.class, defaultValue);
+            defaultInt = defaultValue;
+        }
+
+        public int getInt(CApplication app) {
+            return getInt(app.getTypedContext());
+        }
+
+        public void setInt(CApplication app, int value) {
+            setInt(app.getTypedContext(), value);
+        }
+
+        int getInt(CContext context) {
+            return context.hasPrimitive(slot) ? (int) context.getPrimitive(slot) : defaultInt;
+        }
+
+        void setInt(CContext context, int value) {
+            context.setPrimitive(slot, value);
+        }
+
+        @Override
+        Integer read(CContext context) {
+            return getInt(context);
+        }
+
+        @Override
+        void write(CContext context, Integer value) {
+            if (value != null) {
+                setInt(context, value);
+            } else {
+                clear(context);
+            }
+        }
+    }
+
+    public static final class OfLong extends Primitive<Long> {
+        private final long defaultLong;
+
+        private OfLong(String name, long defaultValue) {
+            super(name, Long.class, defaultValue);
+            defaultLong = defaultValue;
+        }
+
+        public long getLong(CApplication app) {
+            return getLong(app.getTypedContext());
+        }
+
+        public void setLong(CApplication app, long value) {
+            setLong(app.getTypedContext(), value);
+        }
+
+        long getLong(CContext context) {
+            return context.hasPrimitive(slot) ? context.getPrimitive(slot) : defaultLong;
+        }
+
+        void setLong(CContext context, long value) {
+            context.setPrimitive(slot, value);
+        }
+
+        @Override
+        Long read(CContext context) {
+            return getLong(context);
+        }
+
+        @Override
+        void write(CContext context, Long value) {
+            if (value != null) {
+                setLong(context, value);
+            } else {
+                clear(context);
+            }
+        }
+    }
+
+    public static final class OfBoolean extends Primitive<Boolean> {
+        private final boolean defaultBoolean;
+
+        private OfBoolean(String name, boolean defaultValue) {
+            super(name, Boolean.class, defaultValue);
+            defaultBoolean = defaultValue;
+        }
+
+        public boolean getBoolean(CApplication app) {
+            return getBoolean(app.getTypedContext());
+        }
+
+        public void setBoolean(CApplication app, boolean value) {
+            setBoolean(app.getTypedContext(), value);
+        }
+
+        boolean getBoolean(CContext context) {
+            return context.hasPrimitive(slot) ? context.getPrimitive(slot) != 0 : defaultBoolean;
+        }
+
+        void setBoolean(CContext context, boolean value) {
+            context.setPrimitive(slot, value ? 1 : 0);
+        }
+
+        @Override
+        Boolean read(CContext context) {
+            return getBoolean(context);
+        }
+
+        @Override
+        void write(CContext context, Boolean value) {
+            if (value != null) {
+                setBoolean(context, value);
+            } else {
+                clear(context);
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Daemon serving invocations of CLI application from {@link CClient}.
+ * <p>The daemon listens on a loopback port, the port and a random token are written to
+ * {@link CClient#DAEMON_FILE} in application home, readable by the owner only.
+ * <p>Protocol, all integers are big-endian and strings are length prefixed UTF-8:
+ * <ul>
+ * <li>client sends token, arguments, working directory and environment</li>
+ * <li>client sends frames of standard input, empty frame for end of input</li>
+ * <li>daemon sends frames of standard output and error, then the exit status</li>
+ * </ul>
+ * <p>Each connection is handled in its own thread. The invocation is cancelled with {@link CCancellation#INTERRUPT_STATUS} if the client
+ * disconnected before it finished.
+ */
+final class CDaemon {
+    private static final Log LOG = LogFactory.getLog(CDaemon.class);
+
+    /**
+     * Exit status of invocation failed with uncaught exception, as JVM exits.
+     */
+    static final int FAILURE_STATUS = 1;
+
+    private final CApplication app;
+
+    private final File file;
+
+    private final String token;
+
+    private ServerSocket server;
+
+    CDaemon(CApplication app) {
+        this.app = app;
+        file = new File(app.getHome(), CClient.DAEMON_FILE);
+        byte[] b = new byte[16];
+        new SecureRandom().nextBytes(b);
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        }
+        token = sb.toString();
+    }
+
+    /**
+     * Serves invocations until the daemon closed.
+     *
+     * @throws IOException if cannot listen
+     */
+    void serve() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        app.addCleanup(this::close);
+        writeDaemonFile(server.getLocalPort());
+        LOG.info("daemon listening on port " + server.getLocalPort());
+        int count = 0;
+        while (!server.isClosed()) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketException e) {     // closed
+                break;
+            }
+            // not in shared executors, which perform tasks of invocations
+            Thread thread = new Thread(() -> handle(socket), "daemon-connection-" + ++count);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void close() {
+        if (!file.delete()) {
+            LOG.debug("cannot delete daemon file: " + file);
+        }
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            LOG.debug("cannot close daemon", e);
+        }
+    }
+
+    private void writeDaemonFile(int port) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory: " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            try {
+                Files.setPosixFilePermissions(tmp.toPath(), PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                LOG.debug("cannot restrict permissions of daemon file", e);
+            }
+            out.write((port + " " + token + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            String secret = CClient.readString(in);
+            if (!MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8))) {
+                LOG.error("rejected invocation with invalid token");
+                return;
+            }
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; ++i) {
+                args[i] = CClient.readString(in);
+            }
+            File cwd = new File(CClient.readString(in));
+            int count = in.readInt();
+            Map<String, String> env = new HashMap<>();
+            for (int i = 0; i < count; ++i) {
+                env.put(CClient.readString(in), CClient.readString(in));
+            }
+            PrintStream stdout = new PrintStream(new BufferedOutputStream(
+                    new FrameOutputStream(out, CClient.STDOUT)), true);
+            PrintStream stderr = new PrintStream(new BufferedOutputStream(
+                    new FrameOutputStream(out, CClient.STDERR)), true);
+            FrameInputStream stdin = new FrameInputStream();
+            CInvocation invocation = new CInvocation(args, cwd, env, stdin, stdout, stderr);
+            Thread pump = new Thread(() -> pump(in, stdin, invocation.cancellation), "daemon-stdin");
+            pump.setDaemon(true);
+            pump.start();
+            int status;
+            Throwable failure = null;
+            try {
+                status = app.execute(invocation);
+            } catch (Throwable t) {     // reported to client instead of dropping the connection
+                LOG.debug("invocation failed", t);
+                t.printStackTrace(stderr);
+                status = FAILURE_STATUS;
+                failure = t;
+            } finally {
+                stdin.finished = true;
+            }
+            stdout.flush();
+            stderr.flush();
+            synchronized (out) {
+                out.write(CClient.EXIT);
+                out.writeInt(status);
+                out.flush();
+            }
+            if (failure instanceof VirtualMachineError) {
+                throw (VirtualMachineError) failure;
+            }
+        } catch (IOException e) {
+            LOG.debug("invocation connection lost", e);
+        }
+    }
+
+    // reads frames from client, cancels the invocation when client disconnected
+    private static void pump(DataInputStream in, FrameInputStream stdin, CCancellation cancellation) {
+        IOException error = null;
+        try {
+            byte[] buf = new byte[8192];
+            int type;
+            while ((type = in.read()) != -1) {
+                if (type != CClient.STDIN) {
+                    throw new IOException("unexpected frame: " + type);
+                }
+                int length = in.readInt();
+                if (length == 0) {
+                    stdin.close(null);      // keep reading for detecting disconnection
+                    continue;
+                }
+                while (length > 0) {
+                    int n = Math.min(length, buf.length);
+                    in.readFully(buf, 0, n);
+                    stdin.feed(buf, n);
+                    length -= n;
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stdin.close(error != null ? error : new EOFException("client disconnected"));
+        if (!stdin.finished) {
+            LOG.debug("client disconnected, cancel invocation", error);
+            cancellation.cancel(CCancellation.INTERRUPT_STATUS);
+        }
+    }
+
+    // writes data as frames to client
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int type;
+
+        private FrameOutputStream(DataOutputStream out, int type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.write(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+
+    // buffer of standard input fed by frames from client
+    private static class FrameInputStream extends InputStream {
+        private final byte[] buffer = new byte[65536];
+        private int head = 0;
+        private int count = 0;
+        // end of input, or error if input not finished
+        private boolean closed = false;
+        private IOException error = null;
+        // invocation finished
+        private volatile boolean finished = false;
+
+        private synchronized void feed(byte[] b, int len) throws InterruptedException {
+            int off = 0;
+            while (len > 0) {
+                while (count == buffer.length) {
+                    if (finished) {     // not read any more
+                        return;
+                    }
+                    wait(100);
+                }
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        private synchronized void close(IOException error) {
+            if (!closed) {
+                closed = true;
+                this.error = error;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (count == 0) {
+                if (closed) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            int n = Math.min(len, Math.min(count, buffer.length - head));
+            System.arraycopy(buffer, head, b, off, n);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+    }
+}
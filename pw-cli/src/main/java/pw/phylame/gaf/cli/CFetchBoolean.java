@@ -23,6 +23,10 @@ public class CFetchBoolean extends CFetchValue<Boolean> {
         super(option);
     }
 
+    public CFetchBoolean(String option, CContextKey<Boolean> key) {
+        super(option, key);
+    }
+
     @Override
     protected Boolean valueOfString(String str) {
         return Boolean.valueOf(str);
@@ -23,6 +23,10 @@ public class CFetchInteger extends CFetchValue<Integer> {
         super(option);
     }
 
+    public CFetchInteger(String option, CContextKey<Integer> key) {
+        super(option, key);
+    }
+
     @Override
     protected Integer valueOfString(String str) {
         return Integer.valueOf(str);
@@ -23,12 +23,23 @@ import org.apache.commons.cli.CommandLine;
 public class CFetchList implements CInitializer {
     private final String option;
 
+    private final CContextKey<String[]> key;
+
     public CFetchList(String option) {
+        this(option, null);
+    }
+
+    public CFetchList(String option, CContextKey<String[]> key) {
         this.option = option;
+        this.key = key;
     }
 
     @Override
     public void perform(CApplication app, CommandLine cmd) {
-        app.getContext().put(option, cmd.getOptionValues(option));
+        if (key != null) {
+            key.set(app, cmd.getOptionValues(option));
+        } else {
+            app.getContext().put(option, cmd.getOptionValues(option));
+        }
     }
 }
@@ -20,15 +20,28 @@ package pw.phylame.gaf.cli;
 
 import org.apache.commons.cli.CommandLine;
 
+import java.util.Properties;
+
 public class CFetchProperties implements CInitializer {
     private final String option;
 
+    private final CContextKey<Properties> key;
+
     public CFetchProperties(String option) {
+        this(option, null);
+    }
+
+    public CFetchProperties(String option, CContextKey<Properties> key) {
         this.option = option;
+        this.key = key;
     }
 
     @Override
     public void perform(CApplication app, CommandLine cmd) {
-        app.getContext().put(option, cmd.getOptionProperties(option));
+        if (key != null) {
+            key.set(app, cmd.getOptionProperties(option));
+        } else {
+            app.getContext().put(option, cmd.getOptionProperties(option));
+        }
     }
 }
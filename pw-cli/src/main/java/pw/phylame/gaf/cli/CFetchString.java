@@ -23,6 +23,10 @@ public class CFetchString extends CFetchValue<String> {
         super(option);
     }
 
+    public CFetchString(String option, CContextKey<String> key) {
+        super(option, key);
+    }
+
     @Override
     protected String valueOfString(String str) {
         return str;
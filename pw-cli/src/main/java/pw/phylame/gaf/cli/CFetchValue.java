@@ -23,8 +23,21 @@ import org.apache.commons.cli.CommandLine;
 public abstract class CFetchValue<T> implements CInitializer {
     private final String option;
 
+    private final CContextKey<T> key;
+
     protected CFetchValue(String option) {
+        this(option, null);
+    }
+
+    /**
+     * Constructs the initializer storing the value to typed context by the key.
+     *
+     * @param option the option
+     * @param key    the key, if <tt>null</tt> the value is put to context by name of the option
+     */
+    protected CFetchValue(String option, CContextKey<T> key) {
         this.option = option;
+        this.key = key;
     }
 
     protected abstract T valueOfString(String str);
@@ -46,6 +59,10 @@ public abstract class CFetchValue<T> implements CInitializer {
         if (!validateValue(value)) {
             app.exit(-1);
         }
-        app.getContext().put(option, value);
+        if (key != null) {
+            key.set(app, value);
+        } else {
+            app.getContext().put(option, value);
+        }
     }
 }
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of results of inputs of one command, for performing inputs incrementally.
+ * <p>Each input file is fingerprinted by size and modification time, and optionally
+ * SHA-256 of its content, together with a variant digest of options of the invocation.
+ * Input with matched fingerprint is skipped and its cached status is reported.
+ * When size or modification time changed but content hash matched, the input is
+ * also skipped and the new time is recorded.
+ * <p>Records are appended to a log file and loaded to memory when opened, the log is
+ * compacted when closed. The file may be shared by processes, records are appended in
+ * batches with exclusive lock of the file, and compaction rewrites the file in place with
+ * the lock after reloading records of all processes. A batch truncated by crash is ignored.
+ */
+final class CIncrementalCache implements Closeable {
+    private static final Log LOG = LogFactory.getLog(CIncrementalCache.class);
+
+    private static final int MAGIC = 0x47414643;    // GAFC
+
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // records not written to the log file
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(BUFFER_SIZE);
+    private final DataOutputStream buffer = new DataOutputStream(pending);
+
+    // not interruptible like FileChannel, only its channel is used for locking
+    private RandomAccessFile log;
+
+    // records in the log file and pending, including obsolete ones
+    private int records = 0;
+
+    CIncrementalCache(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Creates session of invocation.
+     *
+     * @param variant digest of options affecting results
+     * @param hashed  whether content of input is hashed
+     * @return the session
+     */
+    Session session(String variant, boolean hashed) {
+        return new Session(variant, hashed);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    synchronized void flush() {
+        writePending();
+    }
+
+    @Override
+    public synchronized void close() {
+        writePending();
+        if (records > entries.size() * 2 + 1024) {
+            compact();
+        }
+        closeLog();
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();     // interrupted channel is closed when locking
+        try (FileInputStream in = new FileInputStream(file);
+             FileLock lock = in.getChannel().lock(0, Long.MAX_VALUE, true)) {
+            int n = read(new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE)), entries);
+            if (n == -1) {
+                LOG.debug("ignored cache of other version: " + file);
+            } else {
+                records = n;
+            }
+        } catch (IOException e) {
+            LOG.debug("cannot load cache: " + file, e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads records of the log to the map.
+     *
+     * @return number of records, or <tt>-1</tt> if the log is empty or of other version
+     */
+    private static int read(DataInputStream in, Map<String, Entry> entries) throws IOException {
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return -1;
+            }
+        } catch (EOFException e) {
+            return -1;
+        }
+        int records = 0;
+        while (true) {
+            Entry entry;
+            String key;
+            try {
+                key = in.readUTF();
+                entry = new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readInt());
+            } catch (EOFException e) {     // end or truncated record
+                break;
+            }
+            entries.put(key, entry);
+            ++records;
+        }
+        return records;
+    }
+
+    private synchronized void append(String key, Entry entry) {
+        entries.put(key, entry);
+        try {
+            write(buffer, key, entry);
+        } catch (IOException e) {
+            throw new AssertionError(e);    // not thrown by memory stream
+        }
+        ++records;
+        if (pending.size() >= BUFFER_SIZE) {
+            writePending();
+        }
+    }
+
+    private RandomAccessFile openLog() throws IOException {
+        if (log == null) {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("cannot create directory: " + dir);
+            }
+            log = new RandomAccessFile(file, "rw");
+        }
+        return log;
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOG.debug("cannot close cache: " + file, e);
+            }
+            log = null;
+        }
+    }
+
+    // appends pending records with exclusive lock, records are dropped if failed
+    private void writePending() {
+        if (pending.size() == 0) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            RandomAccessFile log = openLog();
+            try (FileLock lock = log.getChannel().lock()) {
+                if (!hasHeader(log)) {  // new, or of other version
+                    log.setLength(0);
+                    log.write(header());
+                }
+                long end = log.length();
+                log.seek(end);
+                try {
+                    log.write(pending.toByteArray());
+                } catch (IOException e) {
+                    log.setLength(end);     // partial records break following ones
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("cannot write cache: " + file, e);
+            closeLog();
+        } finally {
+            pending.reset();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void compact() {
+        boolean interrupted = Thread.interrupted();
+        try {
+            RandomAccessFile log = openLog();
+            try (FileLock lock = log.getChannel().lock()) {
+                if (log.length() > Integer.MAX_VALUE) {
+                    return;
+                }
+                // records appended by other processes are kept
+                byte[] b = new byte[(int) log.length()];
+                log.seek(0);
+                log.readFully(b);
+                Map<String, Entry> latest = new LinkedHashMap<>();
+                read(new DataInputStream(new ByteArrayInputStream(b)), latest);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(b.length);
+                DataOutputStream data = new DataOutputStream(out);
+                data.write(header());
+                for (Map.Entry<String, Entry> e : latest.entrySet()) {
+                    write(data, e.getKey(), e.getValue());
+                }
+                log.setLength(0);
+                log.seek(0);
+                log.write(out.toByteArray());
+                entries.putAll(latest);
+                records = latest.size();
+            }
+        } catch (IOException e) {
+            LOG.debug("cannot compact cache: " + file, e);
+            closeLog();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean hasHeader(RandomAccessFile log) throws IOException {
+        if (log.length() < 8) {
+            return false;
+        }
+        log.seek(0);
+        return log.readInt() == MAGIC && log.readInt() == VERSION;
+    }
+
+    private static byte[] header() {
+        return ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION).array();
+    }
+
+    private static void write(DataOutputStream out, String key, Entry entry) throws IOException {
+        out.writeUTF(key);
+        out.writeLong(entry.size);
+        out.writeLong(entry.time);
+        out.writeUTF(entry.hash);
+        out.writeInt(entry.status);
+    }
+
+    static String digest(String text) {
+        return hex(sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String hashOf(File file) throws IOException {
+        MessageDigest md = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hex(md.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long time;
+        private final String hash;
+        private final int status;
+
+        private Entry(long size, long time, String hash, int status) {
+            this.size = size;
+            this.time = time;
+            this.hash = hash;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Fingerprint of an input, taken before performing it.
+     */
+    static final class Probe {
+        private final String key;
+        private final long size;
+        private final long time;
+        private String hash;
+        // cached status if hit
+        private Integer status;
+
+        private Probe(String key, long size, long time) {
+            this.key = key;
+            this.size = size;
+            this.time = time;
+        }
+
+        Integer getStatus() {
+            return status;
+        }
+    }
+
+    final class Session {
+        private final String variant;
+        private final boolean hashed;
+
+        private Session(String variant, boolean hashed) {
+            this.variant = variant;
+            this.hashed = hashed;
+        }
+
+        /**
+         * Fingerprints the file and looks up cached status.
+         *
+         * @param file the input file
+         * @return the probe, or <tt>null</tt> if the input is not a regular file
+         * @throws IOException if failed to read the file
+         */
+        Probe probe(File file) throws IOException {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;
+            }
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            String key = variant + '\0' + file.getAbsolutePath();
+            Probe probe = new Probe(key, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size == probe.size && entry.time == probe.time) {
+                probe.hash = entry.hash;
+                probe.status = entry.status;
+                if (hashed && entry.hash.isEmpty()) {   // cached without hash
+                    probe.hash = hashOf(file);
+                    append(key, new Entry(probe.size, probe.time, probe.hash, entry.status));
+                }
+            } else if (hashed) {
+                probe.hash = hashOf(file);
+                if (entry != null && entry.hash.equals(probe.hash)) {   // touched but not changed
+                    probe.status = entry.status;
+                    append(key, new Entry(probe.size, probe.time, probe.hash, entry.status));
+                }
+            }
+            return probe;
+        }
+
+        void store(Probe probe, int status) {
+            append(probe.key, new Entry(probe.size, probe.time, probe.hash != null ? probe.hash : "", status));
+        }
+    }
+}
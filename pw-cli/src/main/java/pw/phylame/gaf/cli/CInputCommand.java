@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+/**
+ * Command performed for each input of the application.
+ * <p>Inputs are streamed from arguments, argument files and standard input, and performed
+ * by a bounded pool of workers, see {@link CApplication#processInputs(CInputCommand)}.
+ */
+public interface CInputCommand extends CCommand {
+    /**
+     * Performs the command for one input, may be invoked concurrently.
+     *
+     * @param app   the application
+     * @param input the input
+     * @return status of the input
+     */
+    int perform(CApplication app, String input);
+
+    /**
+     * Invoked after an input performed, never invoked concurrently.
+     *
+     * @param app    the application
+     * @param input  the input
+     * @param status status of the input
+     * @param error  exception thrown by the input, <tt>null</tt> if no error
+     */
+    default void inputPerformed(CApplication app, String input, int status, RuntimeException error) {
+        if (error != null) {
+            app.error("failed to perform input: " + input, error);
+        }
+    }
+
+    /**
+     * Tests whether {@link #inputPerformed(CApplication, String, int, RuntimeException)} is invoked
+     * in order of inputs, otherwise in order of completion.
+     *
+     * @return <tt>true</tt> if ordered
+     */
+    default boolean isOrdered() {
+        return true;
+    }
+
+    /**
+     * Tests whether directories and glob patterns of inputs are expanded to files,
+     * see {@link CApplication#expandedInputIterator()}.
+     *
+     * @return <tt>true</tt> if expanding
+     */
+    default boolean isExpandingInputs() {
+        return false;
+    }
+
+    /**
+     * Gets names of context values affecting results of inputs, inputs are performed
+     * incrementally if not <tt>null</tt>.
+     * <p>In incremental mode, input file whose size, modification time and the context values
+     * are same as last successful performing is skipped, and
+     * {@link #inputPerformed(CApplication, String, int, RuntimeException)} is invoked with
+     * the cached status. Only non-negative status is cached.
+     *
+     * @return the names, or <tt>null</tt> if not incremental
+     * @see #isContentHashed()
+     */
+    default String[] getIncrementalKeys() {
+        return null;
+    }
+
+    /**
+     * Tests whether content hash of input is fingerprinted in incremental mode, so input
+     * changed with same size and time is performed again, and input touched without
+     * changing is skipped.
+     *
+     * @return <tt>true</tt> if hashed
+     */
+    default boolean isContentHashed() {
+        return false;
+    }
+
+    @Override
+    default int perform(CApplication app) {
+        return app.processInputs(this);
+    }
+}
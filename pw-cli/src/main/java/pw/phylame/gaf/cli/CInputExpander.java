@@ -0,0 +1,335 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.LinkOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Expands directories and glob patterns of inputs to files.
+ * <p>Input containing glob characters (<tt>*?[{</tt>) is split to base directory and pattern,
+ * for example <tt>src/**&#47;*.java</tt>, and existing directory is expanded to all files in it.
+ * The pattern matches relative path from the base directory, subdirectories are walked only
+ * as deep as segments of the pattern unless it contains <tt>**</tt>, so <tt>src/*.java</tt>
+ * matches files in <tt>src</tt> only. Other inputs, and patterns whose base directory not exists,
+ * are kept as is.
+ * <p>Subtrees are walked in parallel by a fork-join pool, files are streamed to the consumer
+ * through a bounded queue, so walking is paused while the consumer is busy.
+ * Files are not in determined order.
+ * <p>Include and exclude patterns match relative path from the base directory if containing
+ * <tt>/</tt>, otherwise match file name. Excluded directories are not walked.
+ */
+final class CInputExpander implements Iterator<String>, Closeable {
+    private static final Object END = new Object();
+
+    private final Iterator<String> inputs;
+    private final Function<String, File> resolver;
+    private final ForkJoinPool pool;
+    private final int capacity;
+    private final List<PathMatcher[]> includes;
+    private final List<PathMatcher[]> excludes;
+    private final BiConsumer<Path, IOException> errorHandler;
+
+    private Walk walk = null;
+    private String next = null;
+
+    CInputExpander(Iterator<String> inputs, Function<String, File> resolver, ForkJoinPool pool, int capacity,
+                   List<String> includes, List<String> excludes, BiConsumer<Path, IOException> errorHandler) {
+        this.inputs = inputs;
+        this.resolver = resolver;
+        this.pool = pool;
+        this.capacity = Math.max(1, capacity);
+        this.includes = matchersOf(includes);
+        this.excludes = matchersOf(excludes);
+        this.errorHandler = errorHandler;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (walk != null) {
+                next = walk.poll();
+                if (next == null) {
+                    walk = null;
+                }
+            } else if (inputs.hasNext()) {
+                String input = inputs.next();
+                walk = walkOf(input);
+                if (walk == null) {
+                    next = input;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String str = next;
+        next = null;
+        return str;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (walk != null) {
+            walk.cancel();
+            walk = null;
+        }
+        if (inputs instanceof Closeable) {
+            ((Closeable) inputs).close();
+        }
+    }
+
+    private Walk walkOf(String input) {
+        int end = globIndex(input);
+        if (end == -1) {
+            File file = resolver.apply(input);
+            return file.isDirectory() ? new Walk(file.toPath(), null, Integer.MAX_VALUE) : null;
+        }
+        int slash = Math.max(input.lastIndexOf('/', end), input.lastIndexOf(File.separatorChar, end));
+        String base = slash == -1 ? "." : slash == 0 ? "/" : input.substring(0, slash);
+        File dir = resolver.apply(base);
+        if (!dir.isDirectory()) {
+            return null;
+        }
+        String pattern = input.substring(slash + 1);
+        return new Walk(dir.toPath(), pathMatcherOf(pattern), levelsOf(pattern));
+    }
+
+    // number of path segments matched by the pattern, unlimited if containing **
+    private static int levelsOf(String pattern) {
+        if (pattern.contains("**")) {
+            return Integer.MAX_VALUE;
+        }
+        int levels = 1;
+        for (int i = 0, n = pattern.length(); i < n; ++i) {
+            if (pattern.charAt(i) == '/') {
+                ++levels;
+            }
+        }
+        return levels;
+    }
+
+    private static int globIndex(String input) {
+        for (int i = 0, n = input.length(); i < n; ++i) {
+            if ("*?[{".indexOf(input.charAt(i)) != -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static List<PathMatcher[]> matchersOf(List<String> patterns) {
+        List<PathMatcher[]> matchers = new ArrayList<>();
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                matchers.add(matchersOf(pattern));
+            }
+        }
+        return matchers;
+    }
+
+    /**
+     * Creates matchers of the pattern, the first matches relative path, or <tt>null</tt> if
+     * the pattern matches file name, the second matches file name.
+     */
+    private static PathMatcher[] matchersOf(String pattern) {
+        if (pattern.indexOf('/') == -1) {
+            return new PathMatcher[]{null, FileSystems.getDefault().getPathMatcher("glob:" + pattern)};
+        }
+        return new PathMatcher[]{pathMatcherOf(pattern), null};
+    }
+
+    // matcher of relative path
+    private static PathMatcher pathMatcherOf(String pattern) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        if (pattern.startsWith("**/")) {    // ** also matches zero directory
+            PathMatcher rest = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(3));
+            return path -> matcher.matches(path) || rest.matches(path);
+        }
+        return matcher;
+    }
+
+    private static boolean matches(PathMatcher[] matchers, Path relative, Path name) {
+        return matchers[0] != null ? matchers[0].matches(relative) : matchers[1].matches(name);
+    }
+
+    private static boolean matchesAny(List<PathMatcher[]> matchers, Path relative, Path name) {
+        for (PathMatcher[] m : matchers) {
+            if (matches(m, relative, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class Walk {
+        private final Path base;
+        // matcher of relative path, null for all files
+        private final PathMatcher pattern;
+        // maximum number of segments of relative path
+        private final int levels;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(capacity);
+        private volatile boolean cancelled = false;
+
+        private Walk(Path base, PathMatcher pattern, int levels) {
+            this.base = base;
+            this.pattern = pattern;
+            this.levels = levels;
+            pool.execute(() -> {
+                try {
+                    new WalkTask(base, 0).invoke();
+                } finally {
+                    put(END);
+                }
+            });
+        }
+
+        /**
+         * Takes next file of the walk.
+         *
+         * @return path of the file, or <tt>null</tt> if walk finished
+         */
+        private String poll() {
+            while (true) {
+                Object item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    return null;
+                }
+                if (item == END) {
+                    return null;
+                } else if (item instanceof Failure) {
+                    errorHandler.accept(((Failure) item).path, ((Failure) item).error);
+                } else {
+                    return item.toString();
+                }
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            queue.clear();
+        }
+
+        private void put(Object item) {
+            try {
+                while (!cancelled && !queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    // wait for consumer
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+
+        private boolean accepts(Path relative, Path name) {
+            return (pattern == null || pattern.matches(relative))
+                    && (includes.isEmpty() || matchesAny(includes, relative, name))
+                    && !matchesAny(excludes, relative, name);
+        }
+
+        private final class WalkTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final Path dir;
+            // number of segments of the directory relative to base
+            private final int depth;
+
+            private WalkTask(Path dir, int depth) {
+                this.dir = dir;
+                this.depth = depth;
+            }
+
+            @Override
+            protected void compute() {
+                List<WalkTask> subtasks = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path path : stream) {
+                        if (cancelled) {
+                            return;
+                        }
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                            if (attrs.isSymbolicLink()) {   // links to directory are not followed
+                                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                                if (attrs.isDirectory()) {
+                                    continue;
+                                }
+                            }
+                        } catch (IOException e) {       // other entries are still walked
+                            put(new Failure(path, e));
+                            continue;
+                        }
+                        Path relative = base.relativize(path);
+                        Path name = path.getFileName();
+                        if (attrs.isDirectory()) {
+                            if (depth + 1 < levels && !matchesAny(excludes, relative, name)) {
+                                subtasks.add(new WalkTask(path, depth + 1));
+                            }
+                        } else if (accepts(relative, name)) {
+                            put(path);
+                        }
+                    }
+                } catch (IOException e) {
+                    put(new Failure(dir, e));
+                }
+                invokeAll(subtasks);
+            }
+        }
+    }
+
+    private static class Failure {
+        private final Path path;
+        private final IOException error;
+
+        private Failure(Path path, IOException error) {
+            this.path = path;
+            this.error = error;
+        }
+    }
+}
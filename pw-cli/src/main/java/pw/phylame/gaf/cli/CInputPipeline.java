@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.*;
+import java.util.Map;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Pipeline performing inputs by bounded workers.
+ * <p>At most <tt>parallelism</tt> inputs are performed at the same time, and at most
+ * <tt>window</tt> inputs are read but not reported, reading inputs is blocked when
+ * the window is full, so memory is bounded regardless of number of inputs.
+ */
+final class CInputPipeline {
+    private final CApplication app;
+    private final CInputCommand command;
+    private final Executor executor;
+    private final Function<Runnable, Runnable> binder;
+    private final Semaphore workers;
+    private final Semaphore window;
+    private final int windowSize;
+    private final CIncrementalCache.Session cache;
+    private final CProfile.Entry profile;
+    private final LongAdder skipped = new LongAdder();
+
+    // results not reported in order, at most window size
+    private final Map<Long, Result> pending = new HashMap<>();
+    private long next = 0;
+
+    private int status = 0;
+    // first exit or error in order of inputs
+    private long failedIndex = Long.MAX_VALUE;
+    private Throwable failure = null;
+
+    /**
+     * @param binder binds invocation of current thread to tasks performed by workers
+     * @param cache   session of incremental cache, <tt>null</tt> if not incremental
+     * @param profile profile entry of inputs, <tt>null</tt> if not profiling
+     */
+    CInputPipeline(CApplication app, CInputCommand command, Executor executor, Function<Runnable, Runnable> binder,
+                   int parallelism, int window, CIncrementalCache.Session cache, CProfile.Entry profile) {
+        this.app = app;
+        this.cache = cache;
+        this.profile = profile;
+        this.command = command;
+        this.executor = executor;
+        this.binder = binder;
+        workers = new Semaphore(Math.max(1, parallelism));
+        windowSize = Math.max(Math.max(1, parallelism), window);
+        this.window = new Semaphore(windowSize);
+    }
+
+    int run(Iterator<String> inputs) {
+        long index = 0;
+        CCancellation cancellation = app.getCancellation();
+        try {
+            while (!failed() && !cancellation.isCancelled() && inputs.hasNext()) {
+                submit(index, inputs.next());
+                ++index;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(index, new CInvocation.Exit(-1));
+        } catch (RejectedExecutionException e) {
+            fail(index, e);
+        } catch (UncheckedIOException e) {
+            app.error("cannot read inputs", e.getCause());
+            merge(-1);
+        }
+        window.acquireUninterruptibly(windowSize);      // wait all reported
+        synchronized (this) {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return status;
+        }
+    }
+
+    // acquires permits of the input, released after reported or if not submitted
+    private void submit(long index, String input) throws InterruptedException {
+        window.acquire();
+        try {
+            workers.acquire();
+        } catch (InterruptedException e) {
+            window.release();
+            throw e;
+        }
+        try {
+            executor.execute(binder.apply(() -> perform(index, input)));
+        } catch (RuntimeException | Error e) {
+            workers.release();
+            window.release();
+            throw e;
+        }
+    }
+
+    private void perform(long index, String input) {
+        Result result = new Result(input);
+        long[] sample = profile != null ? CProfile.sample() : null;
+        try {
+            CIncrementalCache.Probe probe = cache != null ? probe(input) : null;
+            if (probe != null && probe.getStatus() != null) {
+                result.status = probe.getStatus();
+                skipped.increment();
+            } else {
+                result.status = command.perform(app, input);
+                if (probe != null && result.status >= 0) {
+                    cache.store(probe, result.status);
+                }
+            }
+        } catch (RuntimeException e) {
+            result.status = -1;
+            result.error = e;
+        } catch (Error e) {        // including exit of the invocation
+            result.failure = e;
+        } finally {
+            if (sample != null) {
+                profile.add(sample);
+            }
+            workers.release();
+        }
+        synchronized (this) {
+            if (command.isOrdered()) {
+                pending.put(index, result);
+                while ((result = pending.remove(next)) != null) {
+                    report(next++, result);
+                }
+            } else {
+                report(index, result);
+            }
+        }
+    }
+
+    private CIncrementalCache.Probe probe(String input) {
+        try {
+            return cache.probe(app.resolveFile(input));
+        } catch (IOException e) {
+            app.error("cannot fingerprint input: " + input, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets number of inputs skipped by incremental cache.
+     */
+    long getSkipped() {
+        return skipped.sum();
+    }
+
+    // invoked with lock held
+    private void report(long index, Result result) {
+        try {
+            if (result.failure != null) {
+                fail(index, result.failure);
+            } else {
+                merge(result.status);
+                command.inputPerformed(app, result.input, result.status, result.error);
+            }
+        } catch (Error e) {
+            fail(index, e);
+        } catch (RuntimeException e) {
+            merge(-1);
+            app.error("failed to report input: " + result.input, e);
+        } finally {
+            window.release();
+        }
+    }
+
+    private synchronized boolean failed() {
+        return failure != null;
+    }
+
+    private synchronized void fail(long index, Throwable e) {
+        if (index < failedIndex) {
+            failedIndex = index;
+            failure = e;
+        }
+    }
+
+    private synchronized void merge(int status) {
+        this.status = Math.min(this.status, status);
+    }
+
+    private static class Result {
+        private final String input;
+        private int status;
+        private RuntimeException error;
+        private Throwable failure;
+
+        private Result(String input) {
+            this.input = input;
+        }
+    }
+
+    /**
+     * Iterator of inputs, argument file (<tt>@path</tt>) is expanded to its lines and
+     * <tt>-</tt> is expanded to lines of standard input, lines are read lazily.
+     */
+    static final class Inputs implements Iterator<String>, Closeable {
+        private final Iterator<String> args;
+        private final Function<String, File> resolver;
+        private final InputStream stdin;
+        private BufferedReader reader = null;
+        private boolean readingStdin = false;
+        private String next = null;
+
+        Inputs(String[] args, Function<String, File> resolver, InputStream stdin) {
+            this.args = args != null ? Arrays.asList(args).iterator() : Collections.emptyIterator();
+            this.resolver = resolver;
+            this.stdin = stdin;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    if (reader != null) {
+                        String line = reader.readLine();
+                        if (line == null) {
+                            close();
+                        } else if (!(line = line.trim()).isEmpty()) {
+                            next = line;
+                        }
+                    } else if (args.hasNext()) {
+                        String arg = args.next();
+                        if ("-".equals(arg)) {
+                            reader = new BufferedReader(new InputStreamReader(stdin));
+                            readingStdin = true;
+                        } else if (arg.startsWith("@") && arg.length() > 1) {
+                            reader = new BufferedReader(new InputStreamReader(
+                                    new FileInputStream(resolver.apply(arg.substring(1)))));
+                        } else {
+                            next = arg;
+                        }
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String str = next;
+            next = null;
+            return str;
+        }
+
+        /**
+         * Closes current argument file, standard input is not closed.
+         */
+        @Override
+        public void close() throws IOException {
+            BufferedReader r = reader;
+            reader = null;
+            if (r != null && !readingStdin) {
+                r.close();
+            }
+            readingStdin = false;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.File;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * State of one invocation of CLI application.
+ * <p>Options of the application are shared by invocations, while arguments, environment,
+ * standard streams, context, inputs and commands are isolated for each invocation.
+ */
+final class CInvocation {
+    final String[] args;
+    final File workingDirectory;
+    final Map<String, String> environment;
+    final InputStream in;
+    final PrintStream out;
+    final PrintStream err;
+
+    // commands of one invocation may be performed concurrently
+    final Map<String, Object> context = Collections.synchronizedMap(new HashMap<>());
+    final CContext typedContext = new CContext();
+    final CCancellation cancellation = new CCancellation();
+    final List<CCommand> commands = new ArrayList<>();
+    String[] inputs;
+    final List<String> includes = new ArrayList<>();
+    final List<String> excludes = new ArrayList<>();
+    // null if not profiling
+    CProfile profile;
+    // buffers of channels, created before commands performed
+    final Map<CChannel<?>, CChannel.Pipe> channels = new HashMap<>();
+    // closed when the invocation finished, like input walks abandoned by commands
+    final List<Closeable> resources = Collections.synchronizedList(new ArrayList<>());
+
+    CInvocation(String[] args, File workingDirectory, Map<String, String> environment,
+                InputStream in, PrintStream out, PrintStream err) {
+        this.args = args;
+        this.workingDirectory = workingDirectory;
+        this.environment = environment;
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Thrown by {@link CApplication#exit(int)} to finish current invocation instead of exiting JVM.
+     * <p>It is an {@link Error} for passing through <tt>catch (RuntimeException e)</tt> of commands.
+     */
+    static final class Exit extends Error {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        Exit(int status) {
+            super("exit: " + status, null, false, false);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import org.apache.commons.cli.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Parser with same semantics as {@link DefaultParser}, compiling options to lookup tables once.
+ * <p>Unlike {@link DefaultParser} of commons-cli 1.3, a long option matched exactly is not
+ * ambiguous with other long options starting with it, as fixed in commons-cli 1.4.
+ * <p>Long options are compiled to a trie, so partial matching of long option costs time of
+ * length of the token instead of scanning all options, and tokens are parsed without
+ * creating intermediate lists.
+ * <p>The compiled options are cached until the parser invoked with other options or
+ * {@link #invalidate()} invoked, so options must not be changed between parsing without
+ * invalidating. The parser is thread-safe, but selection of option groups is kept in
+ * the options like {@link DefaultParser}.
+ * <p>Values are added to options by the non-public <tt>Option.addValueForProcessing</tt> of
+ * commons-cli {@value #CLI_VERSION}, the version pinned by this module. With other versions
+ * the parser falls back to {@link DefaultParser}.
+ */
+public class CParser implements CommandLineParser {
+    private static final Log LOG = LogFactory.getLog(CParser.class);
+
+    private static final String[] NO_NAMES = {};
+
+    /**
+     * Version of commons-cli supported by the compiled parser.
+     */
+    static final String CLI_VERSION = "1.3";
+
+    // Option.addValueForProcessing is not public, null if inaccessible or other version
+    private static final MethodHandle ADD_VALUE;
+
+    static {
+        MethodHandle mh = null;
+        Package pkg = Option.class.getPackage();
+        String version = pkg != null ? pkg.getImplementationVersion() : null;
+        if (CLI_VERSION.equals(version)) {
+            try {
+                Method method = Option.class.getDeclaredMethod("addValueForProcessing", String.class);
+                method.setAccessible(true);
+                mh = MethodHandles.lookup().unreflect(method);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.debug("cannot access option values, fall back to default parser", e);
+            }
+        } else {
+            LOG.debug("unsupported commons-cli version " + version + ", fall back to default parser");
+        }
+        ADD_VALUE = mh;
+    }
+
+    private volatile Compiled compiled = null;
+
+    /**
+     * Discards the compiled options, invoked after options changed.
+     */
+    public void invalidate() {
+        compiled = null;
+    }
+
+    @Override
+    public CommandLine parse(Options options, String[] arguments) throws ParseException {
+        return parse(options, arguments, null, false);
+    }
+
+    @Override
+    public CommandLine parse(Options options, String[] arguments, boolean stopAtNonOption) throws ParseException {
+        return parse(options, arguments, null, stopAtNonOption);
+    }
+
+    public CommandLine parse(Options options, String[] arguments, Properties properties) throws ParseException {
+        return parse(options, arguments, properties, false);
+    }
+
+    public CommandLine parse(Options options, String[] arguments, Properties properties, boolean stopAtNonOption)
+            throws ParseException {
+        if (ADD_VALUE == null) {
+            return new DefaultParser().parse(options, arguments, properties, stopAtNonOption);
+        }
+        Compiled c = compiled;
+        if (c == null || c.options != options) {
+            compiled = c = new Compiled(options);
+        }
+        return new Parsing(c, stopAtNonOption).parse(arguments, properties);
+    }
+
+    private static void addValue(Option option, String value) {
+        try {
+            ADD_VALUE.invokeExact(option, value);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // same as Option.acceptsArg, which is not public
+    private static boolean acceptsArg(Option option) {
+        return (option.hasArg() || option.hasArgs() || option.hasOptionalArg())
+                && (option.getArgs() <= 0 || option.getValuesList().size() < option.getArgs());
+    }
+
+    // same as Option.requiresArg, which is not public
+    private static boolean requiresArg(Option option) {
+        if (option.hasOptionalArg()) {
+            return false;
+        }
+        if (option.getArgs() == Option.UNLIMITED_VALUES) {
+            return option.getValuesList().isEmpty();
+        }
+        return acceptsArg(option);
+    }
+
+    // start index of string range without leading hyphens, same as Util.stripLeadingHyphens
+    private static int stripHyphens(String str, int from, int to) {
+        if (to - from >= 2 && str.charAt(from) == '-' && str.charAt(from + 1) == '-') {
+            return from + 2;
+        } else if (to - from >= 1 && str.charAt(from) == '-') {
+            return from + 1;
+        }
+        return from;
+    }
+
+    private static String stripHyphens(String str) {
+        int from = stripHyphens(str, 0, str.length());
+        return from == 0 ? str : str.substring(from);
+    }
+
+    private static String stripQuotes(String str) {
+        int length = str.length();
+        if (length > 1 && str.charAt(0) == '"' && str.charAt(length - 1) == '"'
+                && str.lastIndexOf('"', length - 2) == 0) {
+            return str.substring(1, length - 1);
+        }
+        return str;
+    }
+
+    /**
+     * Immutable lookup tables of options.
+     */
+    private static final class Compiled {
+        private final Options options;
+        // options by key, containing all options like Options
+        private final Map<String, Option> shortOpts = new HashMap<>();
+        // resolved options by long option
+        private final Map<String, Option> longOpts = new HashMap<>();
+        // options of single ASCII character, by Options.getOption and Options.hasShortOption
+        private final Option[] chars = new Option[128];
+        private final Option[] shortChars = new Option[128];
+        private final Map<String, OptionGroup> groups = new HashMap<>();
+        private final Set<OptionGroup> allGroups = Collections.newSetFromMap(new IdentityHashMap<>());
+        // keys of required options and required groups
+        private final List<Object> required = new ArrayList<>();
+        private final Node trie;
+
+        private Compiled(Options options) {
+            this.options = options;
+            for (Option option : options.getOptions()) {
+                String key = keyOf(option);
+                shortOpts.put(key, option);
+                OptionGroup group = options.getOptionGroup(option);
+                if (group != null) {
+                    groups.put(key, group);
+                    allGroups.add(group);
+                }
+            }
+            // all long options in order, options replaced by key are also kept by Options
+            List<String> names = options.getMatchingOptions("");
+            for (String name : names) {
+                longOpts.put(name, options.getOption(name));
+            }
+            for (char c = 0; c < chars.length; ++c) {
+                chars[c] = option(String.valueOf(c));
+                shortChars[c] = shortOpts.get(stripHyphens(String.valueOf(c)));
+            }
+            for (Object key : options.getRequiredOptions()) {     // raw list
+                required.add(key);
+            }
+            TrieBuilder root = new TrieBuilder();
+            for (String name : names) {
+                root.add(name, longOpts.get(name));
+            }
+            trie = root.build();
+        }
+
+        private static String keyOf(Option option) {
+            return option.getOpt() != null ? option.getOpt() : option.getLongOpt();
+        }
+
+        // same as Options.getOption
+        private Option option(String str) {
+            str = stripHyphens(str);
+            Option option = shortOpts.get(str);
+            return option != null ? option : longOpts.get(str);
+        }
+
+        private Option option(char c) {
+            return c < chars.length ? chars[c] : option(String.valueOf(c));
+        }
+
+        private Option shortOption(char c) {
+            return c < shortChars.length ? shortChars[c] : shortOpts.get(String.valueOf(c));
+        }
+
+        // same as Options.hasShortOption
+        private boolean hasShortOption(String str) {
+            return shortOpts.containsKey(stripHyphens(str));
+        }
+
+        /**
+         * Gets the trie node of long options starting with the range of string,
+         * leading hyphens of the range are stripped.
+         */
+        private Node matching(String str, int from, int to) {
+            Node node = trie;
+            for (int i = stripHyphens(str, from, to); node != null && i < to; ++i) {
+                node = node.child(str.charAt(i));
+            }
+            return node;
+        }
+
+        /**
+         * Gets length of the longest long option prefixing the token without leading hyphens,
+         * same as getLongPrefix of DefaultParser.
+         *
+         * @return length of the prefix, or <tt>-1</tt> if not found
+         */
+        private int longPrefix(String token) {
+            String t = stripHyphens(token);
+            if (!t.isEmpty() && t.charAt(0) == '-') {    // prefixes are stripped again
+                for (int i = t.length() - 2; i > 1; --i) {
+                    if (longOpts.containsKey(stripHyphens(t.substring(0, i)))) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            Node node = trie;
+            int found = -1;
+            for (int i = 0, end = t.length() - 2; node != null && i < end; ++i) {
+                node = node.child(t.charAt(i));
+                if (node != null && node.exact != null && i > 0) {
+                    found = i + 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    private static final class Node {
+        private final char[] keys;
+        private final Node[] children;
+        // long options with prefix of the node, in order of options
+        private final String[] names;
+        private final Option[] resolved;
+        // long option ends at the node, null if not exists
+        private final Option exact;
+
+        private Node(char[] keys, Node[] children, String[] names, Option[] resolved, Option exact) {
+            this.keys = keys;
+            this.children = children;
+            this.names = names;
+            this.resolved = resolved;
+            this.exact = exact;
+        }
+
+        private Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    private static final class TrieBuilder {
+        private final TreeMap<Character, TrieBuilder> children = new TreeMap<>();
+        private final List<String> names = new ArrayList<>();
+        private final List<Option> resolved = new ArrayList<>();
+        private Option exact;
+
+        private void add(String name, Option resolved) {
+            TrieBuilder node = this;
+            node.names.add(name);
+            node.resolved.add(resolved);
+            for (int i = 0; i < name.length(); ++i) {
+                node = node.children.computeIfAbsent(name.charAt(i), c -> new TrieBuilder());
+                node.names.add(name);
+                node.resolved.add(resolved);
+            }
+            node.exact = resolved;
+        }
+
+        private Node build() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[keys.length];
+            int i = 0;
+            for (Map.Entry<Character, TrieBuilder> e : children.entrySet()) {
+                keys[i] = e.getKey();
+                nodes[i++] = e.getValue().build();
+            }
+            return new Node(keys, nodes, names.isEmpty() ? NO_NAMES : names.toArray(new String[names.size()]),
+                    resolved.toArray(new Option[resolved.size()]), exact);
+        }
+    }
+
+    private static final class Line extends CommandLine {
+        private static final long serialVersionUID = 1L;
+
+        private void option(Option option) {
+            addOption(option);
+        }
+
+        private void arg(String arg) {
+            addArg(arg);
+        }
+    }
+
+    /**
+     * State of one parsing, same as {@link DefaultParser}.
+     */
+    private static final class Parsing {
+        private final Compiled c;
+        private final boolean stopAtNonOption;
+        private final Line cmd = new Line();
+        private final List<Object> expectedOpts;
+        private String currentToken;
+        private Option currentOption;
+        private boolean skipParsing;
+
+        private Parsing(Compiled c, boolean stopAtNonOption) {
+            this.c = c;
+            this.stopAtNonOption = stopAtNonOption;
+            expectedOpts = c.required.isEmpty() ? Collections.emptyList() : new ArrayList<>(c.required);
+        }
+
+        private CommandLine parse(String[] arguments, Properties properties) throws ParseException {
+            for (OptionGroup group : c.allGroups) {
+                group.setSelected(null);
+            }
+            if (arguments != null) {
+                for (String argument : arguments) {
+                    handleToken(argument);
+                }
+            }
+            checkRequiredArgs();
+            handleProperties(properties);
+            if (!expectedOpts.isEmpty()) {
+                throw new MissingOptionException(expectedOpts);
+            }
+            return cmd;
+        }
+
+        private void handleProperties(Properties properties) throws ParseException {
+            if (properties == null) {
+                return;
+            }
+            for (Enumeration<?> e = properties.propertyNames(); e.hasMoreElements(); ) {
+                String name = e.nextElement().toString();
+                Option opt = c.option(name);
+                if (opt == null) {
+                    throw new UnrecognizedOptionException("Default option wasn't defined", name);
+                }
+                OptionGroup group = c.groups.get(Compiled.keyOf(opt));
+                boolean selected = group != null && group.getSelected() != null;
+                if (cmd.hasOption(name) || selected) {
+                    continue;
+                }
+                String value = properties.getProperty(name);
+                if (opt.hasArg()) {
+                    handleOption(opt);
+                    addValue(currentOption, value);
+                } else if ("yes".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value)
+                        || "1".equalsIgnoreCase(value)) {
+                    handleOption(opt);
+                }
+                currentOption = null;
+            }
+        }
+
+        private void checkRequiredArgs() throws ParseException {
+            if (currentOption != null && requiresArg(currentOption)) {
+                throw new MissingArgumentException(currentOption);
+            }
+        }
+
+        private void handleToken(String token) throws ParseException {
+            currentToken = token;
+            if (skipParsing) {
+                cmd.arg(token);
+            } else if ("--".equals(token)) {
+                skipParsing = true;
+            } else if (currentOption != null && acceptsArg(currentOption) && isArgument(token)) {
+                addValue(currentOption, stripQuotes(token));
+            } else if (token.startsWith("--")) {
+                if (token.indexOf('=') == -1) {
+                    handleLongOptionWithoutEqual(token);
+                } else {
+                    handleLongOptionWithEqual(token);
+                }
+            } else if (token.startsWith("-") && token.length() != 1) {
+                handleShortAndLongOption(token);
+            } else {
+                handleUnknownToken(token);
+            }
+            if (currentOption != null && !acceptsArg(currentOption)) {
+                currentOption = null;
+            }
+        }
+
+        private boolean isArgument(String token) {
+            return !isOption(token) || isNegativeNumber(token);
+        }
+
+        private static boolean isNegativeNumber(String token) {
+            try {
+                Double.parseDouble(token);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        private boolean isOption(String token) {
+            return isLongOption(token) || isShortOption(token);
+        }
+
+        private boolean isShortOption(String token) {
+            return token.startsWith("-") && token.length() >= 2 && c.shortOption(token.charAt(1)) != null;
+        }
+
+        private boolean isLongOption(String token) {
+            if (!token.startsWith("-") || token.length() == 1) {
+                return false;
+            }
+            int pos = token.indexOf('=');
+            Node node = c.matching(token, 0, pos == -1 ? token.length() : pos);
+            if (node != null && node.names.length != 0) {
+                return true;
+            }
+            return c.longPrefix(token) != -1 && !token.startsWith("--");
+        }
+
+        private void handleUnknownToken(String token) throws ParseException {
+            if (token.startsWith("-") && token.length() > 1 && !stopAtNonOption) {
+                throw new UnrecognizedOptionException("Unrecognized option: " + token, token);
+            }
+            cmd.arg(token);
+            if (stopAtNonOption) {
+                skipParsing = true;
+            }
+        }
+
+        private void handleLongOptionWithoutEqual(String token) throws ParseException {
+            Node node = c.matching(token, 0, token.length());
+            if (node == null || node.names.length == 0) {
+                handleUnknownToken(currentToken);
+            } else if (node.exact != null) {
+                handleOption(node.exact);
+            } else if (node.names.length > 1) {
+                throw new AmbiguousOptionException(token, Arrays.asList(node.names));
+            } else {
+                handleOption(node.resolved[0]);
+            }
+        }
+
+        private void handleLongOptionWithEqual(String token) throws ParseException {
+            int pos = token.indexOf('=');
+            Node node = c.matching(token, 0, pos);
+            if (node == null || node.names.length == 0) {
+                handleUnknownToken(currentToken);
+            } else if (node.names.length > 1 && node.exact == null) {
+                throw new AmbiguousOptionException(token.substring(0, pos), Arrays.asList(node.names));
+            } else {
+                Option option = node.exact != null ? node.exact : node.resolved[0];
+                if (acceptsArg(option)) {
+                    handleOption(option);
+                    addValue(currentOption, token.substring(pos + 1));
+                    currentOption = null;
+                } else {
+                    handleUnknownToken(currentToken);
+                }
+            }
+        }
+
+        private void handleShortAndLongOption(String token) throws ParseException {
+            int start = stripHyphens(token, 0, token.length());
+            String t = token.substring(start);
+            int pos = t.indexOf('=');
+            if (t.length() == 1) {
+                // -S
+                Option option = c.shortOption(t.charAt(0));
+                if (option != null) {
+                    handleOption(option);
+                } else {
+                    handleUnknownToken(token);
+                }
+            } else if (pos == -1) {
+                // no equal sign found (-xxx)
+                Node node;
+                if (c.hasShortOption(t)) {
+                    handleOption(c.option(t));
+                } else if ((node = c.matching(token, start, token.length())) != null && node.names.length != 0) {
+                    handleLongOptionWithoutEqual(token);
+                } else {
+                    // look for a long prefix (-Xmx512m)
+                    int length = c.longPrefix(t);
+                    Option option = length != -1 ? c.option(t.substring(0, length)) : null;
+                    if (option != null && acceptsArg(option)) {
+                        handleOption(option);
+                        addValue(currentOption, t.substring(length));
+                        currentOption = null;
+                    } else if (isJavaProperty(t)) {
+                        // -SV1 (-Dflag)
+                        handleOption(c.option(t.charAt(0)));
+                        addValue(currentOption, t.substring(1));
+                        currentOption = null;
+                    } else {
+                        // -S1S2S3 or -S1S2V
+                        handleConcatenatedOptions(token);
+                    }
+                }
+            } else {
+                // equal sign found (-xxx=yyy)
+                String opt = t.substring(0, pos);
+                String value = t.substring(pos + 1);
+                if (opt.length() == 1) {
+                    // -S=V
+                    Option option = c.option(opt);
+                    if (option != null && acceptsArg(option)) {
+                        handleOption(option);
+                        addValue(currentOption, value);
+                        currentOption = null;
+                    } else {
+                        handleUnknownToken(token);
+                    }
+                } else if (isJavaProperty(opt)) {
+                    // -SV1=V2 (-Dkey=value)
+                    handleOption(c.option(opt.charAt(0)));
+                    addValue(currentOption, opt.substring(1));
+                    addValue(currentOption, value);
+                    currentOption = null;
+                } else {
+                    // -L=V or -l=V
+                    handleLongOptionWithEqual(token);
+                }
+            }
+        }
+
+        private boolean isJavaProperty(String token) {
+            Option option = c.option(token.charAt(0));
+            return option != null && (option.getArgs() >= 2 || option.getArgs() == Option.UNLIMITED_VALUES);
+        }
+
+        private void handleOption(Option option) throws ParseException {
+            checkRequiredArgs();
+            option = (Option) option.clone();
+            updateRequiredOptions(option);
+            cmd.option(option);
+            currentOption = option.hasArg() ? option : null;
+        }
+
+        private void updateRequiredOptions(Option option) throws AlreadySelectedException {
+            String key = Compiled.keyOf(option);
+            if (option.isRequired()) {
+                expectedOpts.remove(key);
+            }
+            OptionGroup group = c.groups.get(key);
+            if (group != null) {
+                if (group.isRequired()) {
+                    expectedOpts.remove(group);
+                }
+                group.setSelected(option);
+            }
+        }
+
+        private void handleConcatenatedOptions(String token) throws ParseException {
+            for (int i = 1; i < token.length(); ++i) {
+                Option option = c.option(token.charAt(i));
+                if (option != null) {
+                    handleOption(option);
+                    if (currentOption != null && token.length() != i + 1) {
+                        // add the trail as an argument of the option
+                        addValue(currentOption, token.substring(i + 1));
+                        break;
+                    }
+                } else {
+                    handleUnknownToken(stopAtNonOption && i > 1 ? token.substring(i) : token);
+                    break;
+                }
+            }
+        }
+    }
+}
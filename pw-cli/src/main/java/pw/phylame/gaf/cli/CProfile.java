@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Profile of one invocation, enabled by options of {@link CApplication#profileOption} and
+ * {@link CApplication#profileJsonOption}.
+ * <p>For each initializer, command and inputs of input command, wall time, CPU time and
+ * allocated bytes of performing threads are accumulated. GC time is collected by the whole
+ * JVM, so collections overlapping concurrent entries are counted in each of them.
+ * <p>CPU time and allocated bytes are <tt>-1</tt> if not supported by the JVM.
+ */
+final class CProfile {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS;
+
+    private static final List<GarbageCollectorMXBean> COLLECTORS = ManagementFactory.getGarbageCollectorMXBeans();
+
+    static {
+        com.sun.management.ThreadMXBean allocations = null;
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            allocations = (com.sun.management.ThreadMXBean) THREADS;
+            if (!allocations.isThreadAllocatedMemorySupported()) {
+                allocations = null;
+            }
+        }
+        ALLOCATIONS = allocations;
+    }
+
+    // indexes of samples
+    private static final int WALL = 0, CPU = 1, ALLOC = 2, GC_TIME = 3, GC_COUNT = 4;
+
+    private final File output;
+    private final long[] start;
+    private final long startCpu;
+
+    // entries in order of first recording, guarded by itself
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param output JSON file of the profile, <tt>null</tt> for printing to standard error
+     */
+    CProfile(File output) {
+        this.output = output;
+        if (THREADS.isThreadCpuTimeSupported() && !THREADS.isThreadCpuTimeEnabled()) {
+            THREADS.setThreadCpuTimeEnabled(true);
+        }
+        if (ALLOCATIONS != null && !ALLOCATIONS.isThreadAllocatedMemoryEnabled()) {
+            ALLOCATIONS.setThreadAllocatedMemoryEnabled(true);
+        }
+        start = sample();
+        startCpu = processCpuTime();
+    }
+
+    File getOutput() {
+        return output;
+    }
+
+    /**
+     * Takes sample of current thread, used as start of {@link Entry#add(long[])}.
+     *
+     * @return the sample
+     */
+    static long[] sample() {
+        long gcTime = 0, gcCount = 0;
+        for (GarbageCollectorMXBean collector : COLLECTORS) {
+            gcTime += Math.max(0, collector.getCollectionTime());
+            gcCount += Math.max(0, collector.getCollectionCount());
+        }
+        return new long[]{
+                System.nanoTime(),
+                THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1,
+                ALLOCATIONS != null ? ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1,
+                gcTime,
+                gcCount
+        };
+    }
+
+    /**
+     * Gets entry of the kind and name, created if not exists.
+     *
+     * @param kind kind of the entry, like <tt>init</tt>, <tt>command</tt> or <tt>inputs</tt>
+     * @param name name of the entry
+     * @return the entry
+     */
+    Entry entry(String kind, String name) {
+        synchronized (entries) {
+            return entries.computeIfAbsent(kind + '\0' + name, k -> new Entry(kind, name));
+        }
+    }
+
+    /**
+     * Prints summary table to the stream.
+     *
+     * @param out the stream
+     */
+    void print(PrintStream out) {
+        long[] end = sample();
+        List<Entry> entries = entries();
+        int width = 4;
+        for (Entry entry : entries) {
+            width = Math.max(width, entry.name.length());
+        }
+        String format = "%-8s %-" + width + "s %8s %12s %12s %12s %10s%n";
+        out.printf(Locale.ROOT, "profile: wall %.1f ms, cpu %s ms, gc %.1f ms (%d collections)%n",
+                millis(end[WALL] - start[WALL]), optional(millis(processCpuTime(), startCpu)),
+                (double) (end[GC_TIME] - start[GC_TIME]), end[GC_COUNT] - start[GC_COUNT]);
+        out.printf(Locale.ROOT, format, "kind", "name", "count", "wall_ms", "cpu_ms", "alloc_kib", "gc_ms");
+        for (Entry entry : entries) {
+            synchronized (entry) {
+                out.printf(Locale.ROOT, format, entry.kind, entry.name, entry.count,
+                        String.format(Locale.ROOT, "%.1f", millis(entry.totals[WALL])),
+                        optional(entry.totals[CPU] < 0 ? -1 : millis(entry.totals[CPU])),
+                        optional(entry.totals[ALLOC] < 0 ? -1 : entry.totals[ALLOC] / 1024.0),
+                        String.format(Locale.ROOT, "%.1f", (double) entry.totals[GC_TIME]));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes summary to the file in JSON.
+     *
+     * @param file the file
+     * @throws IOException if occurs IO errors
+     */
+    void export(File file) throws IOException {
+        long[] end = sample();
+        long cpu = processCpuTime();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8))) {
+            writer.write(String.format(Locale.ROOT,
+                    "{\"wall_ms\":%.3f,\"cpu_ms\":%.3f,\"gc_ms\":%d,\"gc_count\":%d,\"entries\":[",
+                    millis(end[WALL] - start[WALL]), millis(cpu, startCpu),
+                    end[GC_TIME] - start[GC_TIME], end[GC_COUNT] - start[GC_COUNT]));
+            boolean first = true;
+            for (Entry entry : entries()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                synchronized (entry) {
+                    writer.write(String.format(Locale.ROOT,
+                            "\n{\"kind\":%s,\"name\":%s,\"count\":%d,\"wall_ms\":%.3f,\"cpu_ms\":%.3f,"
+                                    + "\"alloc_bytes\":%d,\"gc_ms\":%d,\"gc_count\":%d}",
+                            quote(entry.kind), quote(entry.name), entry.count, millis(entry.totals[WALL]),
+                            entry.totals[CPU] < 0 ? -1 : millis(entry.totals[CPU]), entry.totals[ALLOC],
+                            entry.totals[GC_TIME], entry.totals[GC_COUNT]));
+                }
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    private List<Entry> entries() {
+        synchronized (entries) {
+            return new ArrayList<>(entries.values());
+        }
+    }
+
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static double millis(long end, long start) {
+        return end < 0 || start < 0 ? -1 : millis(end - start);
+    }
+
+    private static String optional(double value) {
+        return value < 0 ? "-" : String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String quote(String str) {
+        StringBuilder b = new StringBuilder(str.length() + 2).append('"');
+        for (int i = 0, end = str.length(); i < end; ++i) {
+            char ch = str.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                b.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                b.append(String.format("\\u%04x", (int) ch));
+            } else {
+                b.append(ch);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    /**
+     * Accumulated measurements of one initializer, command or inputs.
+     */
+    static final class Entry {
+        private final String kind;
+        private final String name;
+        private final long[] totals = new long[5];
+        private long count = 0;
+
+        private Entry(String kind, String name) {
+            this.kind = kind;
+            this.name = name;
+        }
+
+        /**
+         * Adds measurements of current thread since the sample.
+         *
+         * @param start sample taken by {@link CProfile#sample()} in current thread
+         */
+        void add(long[] start) {
+            long[] end = sample();
+            synchronized (this) {
+                for (int i = 0; i < totals.length; ++i) {
+                    if (start[i] < 0 || end[i] < 0) {
+                        totals[i] = -1;
+                    } else if (totals[i] >= 0) {
+                        totals[i] += end[i] - start[i];
+                    }
+                }
+                ++count;
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of a long-running command, created by {@link CApplication#startProgress(String)}.
+ * <p>Counters are lock-free and may be updated by many threads for each item. The progress
+ * is reported by a scheduled task: on terminal a progress line is redrawn in place, otherwise
+ * machine-readable lines of <tt>key=value</tt> are printed periodically, for example:
+ * <pre>
+ * progress name=convert items=1200 total=5000 items_per_sec=240.0 bytes=1048576 bytes_per_sec=209715.2 eta_sec=15.8
+ * </pre>
+ * Rates are smoothed averages of recent intervals. Progress lines are written to standard error.
+ */
+public final class CProgress implements Closeable {
+    // weight of the latest interval of smoothed rates
+    private static final double SMOOTHING = 0.3;
+
+    private final String name;
+    private final PrintStream out;
+    private final boolean terminal;
+    private final LongAdder items = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile long total = -1;
+    private volatile long totalBytes = -1;
+
+    private final long startTime = System.nanoTime();
+    private final ScheduledFuture<?> task;
+
+    // accessed by reporting only, guarded by this
+    private long lastTime = startTime;
+    private long lastItems = 0;
+    private long lastBytes = 0;
+    private double itemRate = -1;
+    private double byteRate = -1;
+    private int lastWidth = 0;
+    private boolean closed = false;
+
+    CProgress(String name, PrintStream out, boolean terminal, ScheduledExecutorService scheduler, long interval) {
+        this.name = name;
+        this.out = out;
+        this.terminal = terminal;
+        task = scheduler.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets total number of items, or <tt>-1</tt> if unknown.
+     *
+     * @param total the total
+     */
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    /**
+     * Sets total number of bytes, or <tt>-1</tt> if unknown.
+     *
+     * @param totalBytes the total
+     */
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Marks one item done.
+     */
+    public void step() {
+        items.increment();
+    }
+
+    public void step(long count) {
+        items.add(count);
+    }
+
+    /**
+     * Marks one item done with number of processed bytes.
+     *
+     * @param size number of bytes
+     */
+    public void stepBytes(long size) {
+        items.increment();
+        bytes.add(size);
+    }
+
+    public void addBytes(long size) {
+        bytes.add(size);
+    }
+
+    public long getItems() {
+        return items.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Stops reporting and prints the final progress.
+     */
+    @Override
+    public void close() {
+        task.cancel(false);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            update();
+            print(true);
+            closed = true;
+        }
+    }
+
+    private synchronized void report() {
+        if (!closed) {
+            update();
+            print(false);
+        }
+    }
+
+    private void update() {
+        long now = System.nanoTime();
+        long n = items.sum();
+        long b = bytes.sum();
+        double seconds = (now - lastTime) / 1e9;
+        if (seconds > 0) {
+            itemRate = smooth(itemRate, (n - lastItems) / seconds);
+            byteRate = smooth(byteRate, (b - lastBytes) / seconds);
+        }
+        lastTime = now;
+        lastItems = n;
+        lastBytes = b;
+    }
+
+    private static double smooth(double rate, double current) {
+        return rate < 0 ? current : rate + SMOOTHING * (current - rate);
+    }
+
+    private void print(boolean done) {
+        double elapsed = (lastTime - startTime) / 1e9;
+        // final rates are averages of whole progress
+        double itemsPerSec = done && elapsed > 0 ? lastItems / elapsed : itemRate;
+        double bytesPerSec = done && elapsed > 0 ? lastBytes / elapsed : byteRate;
+        double eta = -1;
+        if (!done) {
+            if (total >= 0 && itemsPerSec > 0) {
+                eta = Math.max(0, total - lastItems) / itemsPerSec;
+            } else if (totalBytes >= 0 && bytesPerSec > 0) {
+                eta = Math.max(0, totalBytes - lastBytes) / bytesPerSec;
+            }
+        }
+        if (terminal) {
+            printLine(done, itemsPerSec, bytesPerSec, eta, elapsed);
+        } else {
+            printRecord(done, itemsPerSec, bytesPerSec, eta, elapsed);
+        }
+        out.flush();
+    }
+
+    private void printLine(boolean done, double itemsPerSec, double bytesPerSec, double eta, double elapsed) {
+        StringBuilder b = new StringBuilder(80).append(name).append(": ").append(lastItems);
+        if (total >= 0) {
+            b.append('/').append(total);
+            if (total > 0) {
+                b.append(String.format(Locale.ROOT, " (%.1f%%)", lastItems * 100.0 / total));
+            }
+        }
+        b.append(String.format(Locale.ROOT, ", %.1f/s", itemsPerSec));
+        if (lastBytes > 0 || totalBytes >= 0) {
+            b.append(", ").append(formatBytes(lastBytes));
+            if (totalBytes >= 0) {
+                b.append('/').append(formatBytes(totalBytes));
+            }
+            b.append(", ").append(formatBytes(bytesPerSec)).append("/s");
+        }
+        if (done) {
+            b.append(", done in ").append(formatSeconds(elapsed));
+        } else if (eta >= 0) {
+            b.append(", ETA ").append(formatSeconds(eta));
+        }
+        int width = b.length();
+        for (int i = width; i < lastWidth; ++i) {     // clear rest of previous line
+            b.append(' ');
+        }
+        lastWidth = width;
+        out.print('\r');
+        out.print(b);
+        if (done) {
+            out.println();
+        }
+    }
+
+    private void printRecord(boolean done, double itemsPerSec, double bytesPerSec, double eta, double elapsed) {
+        StringBuilder b = new StringBuilder(160).append("progress name=").append(name.replace(' ', '_'))
+                .append(" items=").append(lastItems);
+        if (total >= 0) {
+            b.append(" total=").append(total);
+        }
+        b.append(String.format(Locale.ROOT, " items_per_sec=%.1f", itemsPerSec));
+        if (lastBytes > 0 || totalBytes >= 0) {
+            b.append(" bytes=").append(lastBytes);
+            if (totalBytes >= 0) {
+                b.append(" total_bytes=").append(totalBytes);
+            }
+            b.append(String.format(Locale.ROOT, " bytes_per_sec=%.1f", bytesPerSec));
+        }
+        if (eta >= 0) {
+            b.append(String.format(Locale.ROOT, " eta_sec=%.1f", eta));
+        }
+        b.append(String.format(Locale.ROOT, " elapsed_sec=%.1f", elapsed));
+        if (done) {
+            b.append(" done=true");
+        }
+        out.println(b);
+    }
+
+    private static String formatBytes(double size) {
+        String[] units = {"B", "KiB", "MiB", "GiB", "TiB"};
+        int i = 0;
+        while (size >= 1024 && i < units.length - 1) {
+            size /= 1024;
+            ++i;
+        }
+        return i == 0 ? String.format(Locale.ROOT, "%.0f %s", size, units[i])
+                : String.format(Locale.ROOT, "%.1f %s", size, units[i]);
+    }
+
+    private static String formatSeconds(double seconds) {
+        long s = Math.round(seconds);
+        if (s < 60) {
+            return s + "s";
+        } else if (s < 3600) {
+            return String.format(Locale.ROOT, "%dm%02ds", s / 60, s % 60);
+        }
+        return String.format(Locale.ROOT, "%dh%02dm%02ds", s / 3600, (s % 3600) / 60, s % 60);
+    }
+}
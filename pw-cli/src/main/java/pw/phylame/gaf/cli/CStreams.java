@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW CLI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.cli;
+
+import java.io.*;
+import java.util.function.Supplier;
+
+/**
+ * Standard streams routed to streams of current invocation.
+ * <p>Thread without invocation uses the original streams.
+ */
+final class CStreams {
+    private static boolean installed = false;
+
+    private CStreams() {
+    }
+
+    /**
+     * Replaces standard streams with streams routed by specified supplier of invocation.
+     *
+     * @param current supplier of invocation of current thread, may return <tt>null</tt>
+     */
+    static synchronized void install(Supplier<CInvocation> current) {
+        if (installed) {
+            return;
+        }
+        InputStream in = System.in;
+        PrintStream out = System.out, err = System.err;
+        System.setIn(new RoutedInputStream(() -> {
+            CInvocation invocation = current.get();
+            return invocation != null ? invocation.in : in;
+        }));
+        System.setOut(new PrintStream(new RoutedOutputStream(() -> {
+            CInvocation invocation = current.get();
+            return invocation != null ? invocation.out : out;
+        }), true));
+        System.setErr(new PrintStream(new RoutedOutputStream(() -> {
+            CInvocation invocation = current.get();
+            return invocation != null ? invocation.err : err;
+        }), true));
+        installed = true;
+    }
+
+    private static class RoutedInputStream extends InputStream {
+        private final Supplier<InputStream> target;
+
+        private RoutedInputStream(Supplier<InputStream> target) {
+            this.target = target;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return target.get().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return target.get().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return target.get().available();
+        }
+    }
+
+    private static class RoutedOutputStream extends OutputStream {
+        private final Supplier<OutputStream> target;
+
+        private RoutedOutputStream(Supplier<OutputStream> target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.get().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.get().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.get().flush();
+        }
+    }
+}
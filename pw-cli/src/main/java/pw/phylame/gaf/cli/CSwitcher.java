@@ -23,12 +23,23 @@ import org.apache.commons.cli.CommandLine;
 public class CSwitcher implements CInitializer {
     private final String option;
 
+    private final CContextKey<Boolean> key;
+
     public CSwitcher(String option) {
+        this(option, null);
+    }
+
+    public CSwitcher(String option, CContextKey<Boolean> key) {
         this.option = option;
+        this.key = key;
     }
 
     @Override
     public void perform(CApplication app, CommandLine cmd) {
-        app.getContext().put(option, true);
+        if (key != null) {
+            key.set(app, true);
+        } else {
+            app.getContext().put(option, true);
+        }
     }
 }
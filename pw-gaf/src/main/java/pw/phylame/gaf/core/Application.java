@@ -20,9 +20,30 @@ package pw.phylame.gaf.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.Set;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Collections;
+import java.util.ListIterator;
+import java.util.TreeMap;
 import java.util.MissingResourceException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,6 +59,51 @@ public abstract class Application implements Runnable, I18nSupport {
      */
     public static String pluginManifest = "META-INF/pw-gaf/plugin.prop";
 
+    /**
+     * Number of threads for initializing plugins.
+     */
+    public static int pluginParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Name of plugin cache file in application home, <tt>null</tt> to disable the cache.
+     * <p>Plugin entries read from manifests are cached and reused until class path changed.
+     */
+    public static String pluginCache = "plugins.cache";
+
+    /**
+     * Default startup budget of each plugin in milliseconds, 0 for unlimited.
+     * <p>Plugin exceeded its budget continues initializing in background and is not ready
+     * until initialized, see {@link #isPluginReady(String)}. The budget of a plugin
+     * can be specified by metadata <tt>budget</tt> in plugin manifest.
+     */
+    public static long pluginBudget = 0;
+
+    /**
+     * Default timeout of cleanup in milliseconds.
+     */
+    public static long cleanupTimeout = 10000;
+
+    /**
+     * Timeout of destroying plugins in milliseconds when application terminating.
+     * <p>Plugins are destroyed before other cleanups, plugins not destroyed in time are abandoned.
+     */
+    public static long pluginDestroyTimeout = 10000;
+
+    /**
+     * Maximum number of threads for running cleanups.
+     */
+    public static int cleanupParallelism = 4;
+
+    /**
+     * Name of system property for enabling asynchronous console output.
+     */
+    public static final String ASYNC_OUTPUT_PROPERTY = "pw.gaf.asyncOutput";
+
+    /**
+     * Capacity of line buffer of asynchronous console output.
+     */
+    public static int asyncOutputCapacity = 8192;
+
     /**
      * Unique application instance.
      */
@@ -69,9 +135,32 @@ public abstract class Application implements Runnable, I18nSupport {
      */
     private String home;
 
-    private List<Plugin> plugins = new LinkedList<>();
+    // deferred plugins are added in background
+    private List<Plugin> plugins = new CopyOnWriteArrayList<>();
+
+    // initialized plugins in order of initialization
+    private final List<Plugin> initializedPlugins = new CopyOnWriteArrayList<>();
+
+    // initialized plugins, mapped by class name
+    private final Map<String, Plugin> pluginRegistry = new ConcurrentHashMap<>();
 
-    private List<Runnable> cleanups = new LinkedList<>();
+    // plugins loaded from jar files, mapped by absolute file
+    private final Map<File, PluginModule> pluginModules = new LinkedHashMap<>();
+
+    // lazy plugins mapped by their triggers
+    private final Map<String, List<LazyPlugin>> pluginTriggers = new ConcurrentHashMap<>();
+
+    private final List<CleanupTask> cleanups = new CopyOnWriteArrayList<>();
+
+    private ManagedExecutors executors;
+
+    private Metrics metrics;
+
+    // asynchronous output for echo and error, null if disabled
+    private volatile AsyncConsole console = null;
+
+    // onTerminated invoked
+    private final AtomicBoolean terminated = new AtomicBoolean(false);
 
     protected Application(String name, String version, String[] args) {
         if (instance != null) {         // already created
@@ -92,6 +181,16 @@ public abstract class Application implements Runnable, I18nSupport {
         this.arguments = args;
 
         home = System.getProperty("user.home") + File.separatorChar + "." + name.toLowerCase();
+
+        executors = new ManagedExecutors(name.toLowerCase());
+        initMetrics();
+
+        if (Boolean.getBoolean(ASYNC_OUTPUT_PROPERTY)) {
+            setAsyncOutput(true);
+        }
+
+        // run cleanups when JVM terminated by signal
+        Runtime.getRuntime().addShutdownHook(new Thread(this::terminate, name + "-shutdown"));
     }
 
     static Application sharedApplication() {
@@ -121,6 +220,54 @@ public abstract class Application implements Runnable, I18nSupport {
         return home;
     }
 
+    private void initMetrics() {
+        metrics = new Metrics(executors);
+        String[] names = {ManagedExecutors.COMPUTE, ManagedExecutors.IO, ManagedExecutors.SCHEDULER};
+        for (String executor : names) {
+            metrics.gauge("gaf_executor_active_threads", () -> {
+                ManagedExecutors.Statistics stats = executors.statistics().get(executor);
+                return stats != null ? stats.getActiveCount() : 0;
+            }, "executor", executor);
+            metrics.gauge("gaf_executor_queued_tasks", () -> {
+                ManagedExecutors.Statistics stats = executors.statistics().get(executor);
+                return stats != null ? stats.getQueueSize() : 0;
+            }, "executor", executor);
+        }
+        String path = System.getProperty(Metrics.FILE_PROPERTY);
+        if (path != null && !path.isEmpty()) {
+            metrics.exportTo(new File(path));
+        }
+        String port = System.getProperty(Metrics.PORT_PROPERTY);
+        if (port != null && !port.isEmpty()) {
+            try {
+                metrics.serve(Integer.parseInt(port));
+            } catch (IOException | IllegalArgumentException e) {
+                LOG.error("cannot serve metrics on port: " + port, e);
+            }
+        }
+    }
+
+    /**
+     * Gets metrics registry of the application.
+     * <p>Metrics are exported to file specified by system property <tt>pw.gaf.metrics.file</tt>,
+     * or served on localhost port specified by system property <tt>pw.gaf.metrics.port</tt>.
+     *
+     * @return the metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets executors managed by the application.
+     * <p>The executors are shut down after cleanups run when application terminated.
+     *
+     * @return the executors
+     */
+    public ManagedExecutors getExecutors() {
+        return executors;
+    }
+
     public void installTranslator(I18nSupport translator) {
         if (translator == null) {
             throw new NullPointerException();
@@ -168,25 +315,307 @@ public abstract class Application implements Runnable, I18nSupport {
         loadPlugins(GafUtilities.getContextClassLoader());
     }
 
+    /**
+     * Loads plugins registered in plugin manifest.
+     * <p>Plugins are initialized in order of their dependencies, independent plugins
+     * are initialized in parallel. Plugin failed to load or initialize is ignored.
+     * <p>Plugins declared triggers are not loaded until activated by {@link #activatePlugins(String)}.
+     *
+     * @param classLoader the class loader for plugins
+     * @throws IOException if occurs IO errors when reading manifest
+     */
     public void loadPlugins(ClassLoader classLoader) throws IOException,
             ClassNotFoundException, IllegalAccessException, InstantiationException {
-        List<String> lines = GafUtilities.linesOfResource(pluginManifest, classLoader, true);
-        for (String line : lines) {
-            Class<?> clazz = Class.forName(line, true, classLoader);
-            if (Plugin.class.isAssignableFrom(clazz)) {
-                Plugin plugin = (Plugin) clazz.newInstance();
-                plugin.initialize();
-                if (preparePlugin(plugin)) {
-                    plugins.add(plugin);
+        try (Timeline.Span span = Timeline.begin("loadPlugins")) {
+            List<PluginEntry> entries;
+            try (Timeline.Span s = Timeline.begin("readPluginEntries")) {
+                entries = pluginEntries(classLoader);
+            }
+            installPlugins(new PluginLoader(classLoader, pluginRegistry, metrics), entries);
+        }
+    }
+
+    /**
+     * Loads plugins from jar file, or all jar files in directory.
+     * <p>Each jar file is loaded by an isolated class loader, so plugins in it can be
+     * unloaded by {@link #unloadPlugins(File)} and reloaded by {@link #reloadPlugins(File)}.
+     *
+     * @param file the jar file or directory
+     * @throws IOException if occurs IO errors when reading manifest
+     */
+    public void loadPlugins(File file) throws IOException {
+        file = file.getAbsoluteFile();
+        if (file.isDirectory()) {
+            File[] files = file.listFiles((dir, name) -> name.endsWith(".jar"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File jar : files) {
+                    loadPlugins(jar);
+                }
+            }
+            return;
+        }
+        if (pluginModules.containsKey(file)) {
+            throw new IllegalStateException("plugins already loaded: " + file);
+        }
+        try (Timeline.Span span = Timeline.begin("loadPlugins " + file.getName())) {
+            PluginModule module = new PluginModule(file, GafUtilities.getContextClassLoader(), pluginRegistry,
+                    metrics);
+            pluginModules.put(file, module);
+            installPlugins(module.getLoader(), module.readEntries(pluginManifest));
+        }
+    }
+
+    /**
+     * Unloads plugins loaded from the jar file.
+     * <p>Plugins of the jar file and plugins in other jar files depending on them are destroyed,
+     * and their class loaders are closed.
+     *
+     * @param file the jar file
+     * @throws IOException if occurs IO errors when closing class loader
+     */
+    public void unloadPlugins(File file) throws IOException {
+        List<PluginModule> modules = dependentModules(file);
+        for (int i = modules.size() - 1; i >= 0; --i) {
+            unloadModule(modules.get(i));
+        }
+    }
+
+    /**
+     * Reloads plugins loaded from the jar file.
+     * <p>Jar files containing plugins depending on them are also reloaded.
+     *
+     * @param file the jar file
+     * @throws IOException if occurs IO errors
+     */
+    public void reloadPlugins(File file) throws IOException {
+        List<PluginModule> modules = dependentModules(file);
+        for (int i = modules.size() - 1; i >= 0; --i) {
+            unloadModule(modules.get(i));
+        }
+        for (PluginModule module : modules) {
+            loadPlugins(module.getFile());
+        }
+    }
+
+    /**
+     * Unloads the jar file containing specified plugin.
+     *
+     * @param plugin the plugin
+     * @throws IOException if occurs IO errors when closing class loader
+     */
+    public void unloadPlugin(Plugin plugin) throws IOException {
+        for (PluginModule module : pluginModules.values()) {
+            if (module.owns(plugin)) {
+                unloadPlugins(module.getFile());
+                return;
+            }
+        }
+        throw new IllegalArgumentException("plugin not loaded from jar file: " + plugin);
+    }
+
+    // gets module of the file and modules depending on it, in order of loading
+    private List<PluginModule> dependentModules(File file) {
+        PluginModule module = pluginModules.get(file.getAbsoluteFile());
+        if (module == null) {
+            throw new IllegalArgumentException("no plugins loaded from: " + file);
+        }
+        Set<PluginModule> modules = new LinkedHashSet<>();
+        modules.add(module);
+        Set<String> names = new HashSet<>(module.getLoader().pluginNames());
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (PluginModule m : pluginModules.values()) {
+                if (!modules.contains(m) && m.getLoader().dependsOn(names)) {
+                    modules.add(m);
+                    names.addAll(m.getLoader().pluginNames());
+                    changed = true;
+                }
+            }
+        }
+        List<PluginModule> results = new ArrayList<>();
+        for (PluginModule m : pluginModules.values()) {
+            if (modules.contains(m)) {
+                results.add(m);
+            }
+        }
+        return results;
+    }
+
+    private void unloadModule(PluginModule module) throws IOException {
+        for (int i = initializedPlugins.size() - 1; i >= 0; --i) {
+            Plugin plugin = initializedPlugins.get(i);
+            if (module.owns(plugin)) {
+                destroyPlugin(plugin);
+                initializedPlugins.remove(i);
+                pluginUnloaded(plugin);
+            }
+        }
+        plugins.removeIf(module::owns);
+        pluginRegistry.keySet().removeAll(module.getLoader().pluginNames());
+        for (List<LazyPlugin> proxies : pluginTriggers.values()) {
+            proxies.removeIf(module::owns);
+        }
+        pluginTriggers.values().removeIf(List::isEmpty);
+        pluginModules.remove(module.getFile());
+        module.close();
+    }
+
+    private static void destroyPlugin(Plugin plugin) {
+        String name = plugin.getClass().getName();
+        try (GafEvents.Scope event = GafEvents.plugin("destroy", name)) {
+            plugin.destroy();
+        } catch (RuntimeException e) {
+            LOG.error("cannot destroy plugin: " + name, e);
+        }
+    }
+
+    private void installPlugins(PluginLoader loader, List<PluginEntry> entries) {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, pluginParallelism));
+        try {
+            for (Plugin plugin : loader.load(entries, pool, executors.getScheduler(), pluginBudget,
+                    this::deferredPluginReady)) {
+                if (!preparePlugin(plugin)) {   // rejected lazy plugin is never activated
+                    continue;
+                }
+                plugins.add(plugin);
+                if (plugin instanceof LazyPlugin) {
+                    for (String trigger : ((LazyPlugin) plugin).getEntry().getValues(PluginEntry.TRIGGERS)) {
+                        pluginTriggers.computeIfAbsent(trigger, k -> new CopyOnWriteArrayList<>())
+                                .add((LazyPlugin) plugin);
+                    }
+                } else {
+                    initializedPlugins.add(plugin);
+                }
+            }
+        } finally {
+            loader.whenSettled(pool::shutdown);
+            metrics.timer("gaf_plugin_load_seconds").recordSince(start);
+        }
+    }
+
+    // filtered by preparePlugin like plugins initialized in time
+    private void deferredPluginReady(Plugin plugin) {
+        if (!preparePlugin(plugin)) {
+            destroyPlugin(plugin);
+            pluginRegistry.remove(plugin.getClass().getName(), plugin);
+            return;
+        }
+        plugins.add(plugin);
+        initializedPlugins.add(plugin);
+        pluginActivated(plugin);
+    }
+
+    /**
+     * Tests whether the plugin is initialized.
+     * <p>Plugin deferred for exceeding its startup budget is not ready until initialized
+     * in background, and lazy plugin is not ready until activated.
+     *
+     * @param name class name of the plugin
+     * @return <tt>true</tt> if ready
+     */
+    public boolean isPluginReady(String name) {
+        return pluginRegistry.containsKey(name);
+    }
+
+    private List<PluginEntry> pluginEntries(ClassLoader classLoader) throws IOException {
+        PluginCache cache = null;
+        if (pluginCache != null) {
+            String fingerprint = GafUtilities.classpathFingerprint(classLoader, pluginManifest);
+            if (fingerprint != null) {
+                cache = new PluginCache(new File(home, pluginCache), fingerprint);
+                List<PluginEntry> entries = cache.read();
+                if (entries != null) {
+                    return entries;
                 }
-            } else {
-                LOG.debug("invalid plugin class: " + clazz);
             }
         }
+        List<PluginEntry> entries = new ArrayList<>();
+        for (String line : GafUtilities.linesOfResource(pluginManifest, classLoader, true)) {
+            PluginEntry entry = PluginEntry.parse(line);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        if (cache != null) {
+            cache.writeLater(entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Activates lazy plugins registered with specified trigger.
+     *
+     * @param trigger the trigger, see {@link PluginEntry#TRIGGERS}
+     * @return newly activated plugins
+     */
+    public List<Plugin> activatePlugins(String trigger) {
+        List<LazyPlugin> proxies = pluginTriggers.get(trigger);
+        if (proxies == null) {
+            return Collections.emptyList();
+        }
+        List<Plugin> activated = new ArrayList<>();
+        for (LazyPlugin proxy : proxies) {
+            for (Plugin plugin : proxy.activate()) {
+                initializedPlugins.add(plugin);
+                pluginActivated(plugin);
+                activated.add(plugin);
+            }
+        }
+        if (proxies.stream().allMatch(p -> p.isActivated() || p.failed)) {
+            pluginTriggers.remove(trigger);
+        }
+        return activated;
+    }
+
+    /**
+     * Finds loaded plugins implementing the specified type.
+     * <p>Lazy plugins registered with trigger <tt>service:${type_name}</tt> are activated before finding.
+     *
+     * @param type the service type
+     * @param <T>  type of the service
+     * @return list of plugins
+     */
+    public <T> List<T> findPlugins(Class<T> type) {
+        activatePlugins(PluginEntry.SERVICE_TRIGGER + type.getName());
+        List<T> results = new ArrayList<>();
+        for (Plugin plugin : plugins) {
+            if (plugin instanceof LazyPlugin) {
+                plugin = ((LazyPlugin) plugin).getTarget();
+            }
+            if (type.isInstance(plugin)) {
+                results.add(type.cast(plugin));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Invoked after a lazy plugin activated, or a deferred plugin initialized in background.
+     *
+     * @param plugin the plugin
+     */
+    protected void pluginActivated(Plugin plugin) {
+
+    }
+
+    /**
+     * Invoked after a plugin destroyed when unloading its jar file.
+     * <p>All references to the plugin should be released here.
+     *
+     * @param plugin the plugin
+     */
+    protected void pluginUnloaded(Plugin plugin) {
+
     }
 
     /**
      * Prepares the specified plugin.
+     * <p>For lazy plugin, the proxy of it is prepared when loading and
+     * {@link #pluginActivated(Plugin)} is invoked after activated. Plugin deferred for
+     * exceeding its startup budget is prepared after initialized, and destroyed if rejected.
      *
      * @param plugin the plugin
      * @return <tt>true</tt> to add the plugin to plugin list, otherwise
@@ -200,14 +629,73 @@ public abstract class Application implements Runnable, I18nSupport {
 
     }
 
+    // loads plugins if not loaded by onStart, then exits without running
+    private void exerciseStartup() {
+        if (plugins.isEmpty()) {
+            try {
+                loadPlugins();
+            } catch (IOException | ClassNotFoundException | IllegalAccessException | InstantiationException e) {
+                LOG.error("cannot load plugins in training run", e);
+            }
+        }
+        exit(0);
+    }
+
+    /**
+     * Starts the application.
+     * <p>For training run of class data sharing, the application exits after started,
+     * see {@link ClassDataSharing}.
+     */
     public void start() {
-        onStart();
-        run();
+        String cds = ClassDataSharing.mode();
+        if (ClassDataSharing.TRAIN.equals(cds)) {
+            exit(ClassDataSharing.train(this));
+        }
+        try (Timeline.Span span = Timeline.begin("onStart")) {
+            onStart();
+        }
+        if (ClassDataSharing.DUMP.equals(cds)) {
+            exerciseStartup();
+        }
+        if (ClassDataSharing.getArgsFile(home).exists()) {
+            executors.getIOExecutor().execute(() -> ClassDataSharing.validate(home));
+        }
+        try (Timeline.Span span = Timeline.begin("run")) {
+            run();
+        }
     }
 
+    /**
+     * Invoked when application is terminating, by {@link #exit(int)} or when JVM shutting down.
+     * <p>This method is invoked at most once.
+     */
     protected void onTerminated() {
-        plugins.forEach(Plugin::destroy);
-        cleanups.forEach(Runnable::run);
+        // hung plugin must not block exiting
+        addCleanup(this::destroyPlugins, Integer.MIN_VALUE, pluginDestroyTimeout);
+        runCleanups();
+        metrics.close();
+        executors.shutdown();
+    }
+
+    private void destroyPlugins() {
+        // dependents are destroyed before their dependencies
+        ListIterator<Plugin> it = initializedPlugins.listIterator(initializedPlugins.size());
+        while (it.hasPrevious()) {
+            if (Thread.currentThread().isInterrupted()) {     // timed out
+                LOG.error("plugins not destroyed in time: " + it.nextIndex());
+                return;
+            }
+            destroyPlugin(it.previous());
+        }
+    }
+
+    private void terminate() {
+        if (terminated.compareAndSet(false, true)) {
+            try (Timeline.Span span = Timeline.begin("onTerminated")) {
+                onTerminated();
+            }
+            setAsyncOutput(false);
+        }
     }
 
     public void exit() {
@@ -215,24 +703,138 @@ public abstract class Application implements Runnable, I18nSupport {
     }
 
     public void exit(int status) {
-        onTerminated();
+        terminate();
         System.exit(status);
     }
 
+    /**
+     * Adds cleanup to default group with default timeout.
+     *
+     * @param r the cleanup
+     */
     public void addCleanup(Runnable r) {
-        if (r != null && !cleanups.contains(r)) {
-            cleanups.add(r);
+        addCleanup(r, 0, 0);
+    }
+
+    /**
+     * Adds cleanup run when application terminating.
+     * <p>Groups are run in ascending order, cleanups in same group are run in parallel.
+     * Each cleanup is run at most once, even if application is terminated by signal.
+     * Timeout of cleanup is measured from it starts running, not from its group started.
+     * <p>Plugins are destroyed in group {@link Integer#MIN_VALUE}, see {@link #pluginDestroyTimeout}.
+     *
+     * @param r       the cleanup
+     * @param group   the group of cleanup
+     * @param timeout timeout in milliseconds, <tt>0</tt> for {@link #cleanupTimeout}
+     */
+    public void addCleanup(Runnable r, int group, long timeout) {
+        if (r == null) {
+            return;
+        }
+        for (CleanupTask task : cleanups) {
+            if (task.getTask().equals(r)) {
+                return;
+            }
         }
+        cleanups.add(new CleanupTask(r, group, timeout > 0 ? timeout : cleanupTimeout));
     }
 
     public void removeCleanup(Runnable r) {
         if (r != null) {
-            cleanups.remove(r);
+            cleanups.removeIf(task -> task.getTask().equals(r));
         }
     }
 
+    private void runCleanups() {
+        TreeMap<Integer, List<CleanupTask>> groups = new TreeMap<>();
+        for (CleanupTask task : cleanups) {
+            if (task.start()) {
+                groups.computeIfAbsent(task.getGroup(), k -> new ArrayList<>()).add(task);
+            }
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+        int parallelism = Math.max(1, cleanupParallelism);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-cleanup");
+            thread.setDaemon(true);     // hung cleanup must not block exiting
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        try {
+            for (List<CleanupTask> tasks : groups.values()) {
+                List<Future<?>> futures = new ArrayList<>(tasks.size());
+                for (CleanupTask task : tasks) {
+                    futures.add(executor.submit(task));
+                }
+                for (int i = 0; i < futures.size(); ++i) {
+                    CleanupTask task = tasks.get(i);
+                    try {
+                        awaitCleanup(task, futures.get(i));
+                    } catch (TimeoutException e) {
+                        LOG.error("cleanup timed out after " + task.getTimeout() + " ms: " + task.getTask());
+                        futures.get(i).cancel(true);
+                        // thread of hung cleanup is abandoned, add one for queued cleanups
+                        executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+                        executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+                    } catch (ExecutionException e) {
+                        LOG.error("cleanup failed: " + task.getTask(), e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // cleanup waiting for thread is not timed out
+    private static void awaitCleanup(CleanupTask task, Future<?> future)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        while (true) {
+            boolean running = task.isRunning();
+            try {
+                future.get(Math.max(task.getRemaining(), 0), TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                if (running) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Enables or disables asynchronous output for {@link #echo(String)} and {@link #error(String)}.
+     * <p>When enabled, lines are written to console in batches by a background thread.
+     * All pending lines are written when disabled or application exits.
+     *
+     * @param enabled <tt>true</tt> to enable
+     */
+    public synchronized void setAsyncOutput(boolean enabled) {
+        if (enabled && console == null) {
+            console = new AsyncConsole(name.toLowerCase() + "-console", asyncOutputCapacity);
+        } else if (!enabled && console != null) {
+            console.close();
+            console = null;
+        }
+    }
+
+    public boolean isAsyncOutput() {
+        return console != null;
+    }
+
     public void echo(String text) {
-        System.out.println(name + ": " + text);
+        AsyncConsole c = console;
+        if (c != null) {
+            c.println(name + ": " + text);
+        } else {
+            System.out.println(name + ": " + text);
+        }
     }
 
     public void localizedEcho(String key, Object... args) {
@@ -240,7 +842,12 @@ public abstract class Application implements Runnable, I18nSupport {
     }
 
     public void error(String text) {
-        System.err.println(name + ": " + text);
+        AsyncConsole c = console;
+        if (c != null) {
+            c.printlnError(name + ": " + text);
+        } else {
+            System.err.println(name + ": " + text);
+        }
     }
 
     public void localizedError(String key, Object... args) {
@@ -254,9 +861,17 @@ public abstract class Application implements Runnable, I18nSupport {
                 case Echo:
                     localizedError(errorTipKey, e.getLocalizedMessage());
                     break;
-                case Trace:
-                    e.printStackTrace();
-                    break;
+                case Trace: {
+                    AsyncConsole c = console;
+                    if (c != null) {
+                        StringWriter writer = new StringWriter();
+                        e.printStackTrace(new PrintWriter(writer));
+                        c.printlnError(writer.toString().trim());
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
+                break;
             }
         }
     }
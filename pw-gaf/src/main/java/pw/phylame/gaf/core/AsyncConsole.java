@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Console output writes lines to stdout and stderr asynchronously.
+ * <p>Lines are put into a lock-free ring buffer by callers, a single writer thread
+ * encodes and writes them in batches. Order of lines of stdout and stderr is preserved.
+ * <p>Output written to <tt>System.out</tt> and <tt>System.err</tt> directly is not
+ * ordered with lines of this console.
+ */
+public final class AsyncConsole implements Closeable {
+    private static final int STDOUT = 0;
+    private static final int STDERR = 1;
+
+    public static int bufferSize = 64 * 1024;
+
+    private final int mask;
+
+    // sequence of each slot, Vyukov bounded queue
+    private final AtomicLongArray sequences;
+
+    private final String[] texts;
+
+    private final int[] targets;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    // only accessed by writer thread
+    private long head = 0;
+
+    // number of lines written and flushed
+    private volatile long written = 0;
+
+    private volatile boolean waiting = false;
+
+    private volatile boolean closed = false;
+
+    private final Writer[] writers;
+
+    private final Thread thread;
+
+    /**
+     * Creates console writing to stdout and stderr of the process.
+     *
+     * @param name     name of writer thread
+     * @param capacity capacity of the buffer, rounded up to power of two
+     */
+    public AsyncConsole(String name, int capacity) {
+        this(name, capacity, new FileOutputStream(FileDescriptor.out), new FileOutputStream(FileDescriptor.err),
+                Charset.defaultCharset());
+    }
+
+    public AsyncConsole(String name, int capacity, OutputStream out, OutputStream err, Charset charset) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        texts = new String[size];
+        targets = new int[size];
+        writers = new Writer[]{
+                new BufferedWriter(new OutputStreamWriter(out, charset), bufferSize),
+                new BufferedWriter(new OutputStreamWriter(err, charset), bufferSize)
+        };
+        System.out.flush();
+        System.err.flush();
+        thread = new Thread(this::loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Writes line to stdout.
+     *
+     * @param text the text
+     */
+    public void println(String text) {
+        put(STDOUT, text);
+    }
+
+    /**
+     * Writes line to stderr.
+     *
+     * @param text the text
+     */
+    public void printlnError(String text) {
+        put(STDERR, text);
+    }
+
+    private void put(int target, String text) {
+        if (closed && !thread.isAlive()) {
+            printDirectly(target, text);
+            return;
+        }
+        long pos = tail.get();
+        for (; ; ) {
+            int slot = (int) pos & mask;
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {      // full, wait for writer
+                if (closed && !thread.isAlive()) {
+                    printDirectly(target, text);
+                    return;
+                }
+                wakeup();
+                LockSupport.parkNanos(1000);
+                pos = tail.get();
+            } else {
+                pos = tail.get();
+            }
+        }
+        int slot = (int) pos & mask;
+        texts[slot] = text;
+        targets[slot] = target;
+        sequences.set(slot, pos + 1);
+        wakeup();
+        if (closed) {   // writer may have stopped before the slot claimed
+            LockSupport.unpark(thread);
+            joinWriter();
+            if (written <= pos) {
+                printDirectly(target, text);
+            }
+        }
+    }
+
+    private static void printDirectly(int target, String text) {
+        (target == STDOUT ? System.out : System.err).println(text);
+    }
+
+    private void joinWriter() {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void wakeup() {
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void loop() {
+        int current = STDOUT;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) == head + 1) {
+                String text = texts[slot];
+                int target = targets[slot];
+                texts[slot] = null;
+                sequences.set(slot, head + mask + 1);
+                ++head;
+                try {
+                    if (target != current) {    // keep order of stdout and stderr
+                        writers[current].flush();
+                        current = target;
+                    }
+                    writers[target].write(text);
+                    writers[target].write(System.lineSeparator());
+                } catch (IOException e) {
+                    // ignore, nowhere to report
+                }
+                continue;
+            }
+            try {
+                writers[STDOUT].flush();
+                writers[STDERR].flush();
+            } catch (IOException e) {
+                // ignore
+            }
+            written = head;
+            if (closed && head == tail.get()) {
+                return;
+            }
+            waiting = true;
+            if (sequences.get((int) head & mask) != head + 1 && !closed) {
+                LockSupport.parkNanos(this, 100_000_000L);
+            }
+            waiting = false;
+        }
+    }
+
+    /**
+     * Waits until all lines put before are written.
+     */
+    public void flush() {
+        long target = tail.get();
+        while (written < target && thread.isAlive()) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    /**
+     * Flushes all lines and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.io.*;
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.lang.management.ManagementFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Application class-data sharing (AppCDS) archive of the application.
+ * <p>Training run is requested by system property <tt>pw.gaf.cds=train</tt>, the application
+ * is relaunched to exercise its startup only, then class list and archive are dumped
+ * into <tt>${home}/cds</tt> with a JVM argument file <tt>jvm.args</tt>.
+ * <p>Launcher reuses the archive by passing the argument file to Java 9 or later:
+ * <pre>
+ *     java @${home}/cds/jvm.args -cp ... MainClass ...
+ * </pre>
+ * <p>The archive is keyed by fingerprint of class path, the argument file is removed
+ * when the class path changed, and a new training run is required.
+ * <p>Note: the JVM only archives classes from jar files of class path.
+ */
+public final class ClassDataSharing {
+    private static final Log LOG = LogFactory.getLog(ClassDataSharing.class);
+
+    /**
+     * System property for mode of class data sharing.
+     */
+    public static final String MODE_PROPERTY = "pw.gaf.cds";
+
+    /**
+     * Mode for training run.
+     */
+    public static final String TRAIN = "train";
+
+    /**
+     * Mode for the relaunched application dumping class list, used internally.
+     */
+    public static final String DUMP = "dump";
+
+    /**
+     * Name of JVM argument file.
+     */
+    public static final String ARGS_FILE = "jvm.args";
+
+    /**
+     * Directory of archives, relative to home of application.
+     */
+    public static String directory = "cds";
+
+    private ClassDataSharing() {
+    }
+
+    static String mode() {
+        return System.getProperty(MODE_PROPERTY);
+    }
+
+    public static File getDirectory(String home) {
+        return new File(home, directory);
+    }
+
+    public static File getArgsFile(String home) {
+        return new File(getDirectory(home), ARGS_FILE);
+    }
+
+    /**
+     * Gets the archive for current class path.
+     *
+     * @param home home of application
+     * @return the archive file, or <tt>null</tt> if class path is not supported
+     */
+    public static File getArchive(String home) {
+        String fingerprint = GafUtilities.classpathFingerprint(null);
+        return fingerprint != null ? new File(getDirectory(home), fingerprint + ".jsa") : null;
+    }
+
+    /**
+     * Performs training run of the application.
+     *
+     * @param app the application
+     * @return exit status of training
+     */
+    static int train(Application app) {
+        int feature = javaFeature();
+        if (feature < 10) {
+            LOG.error("AppCDS requires Java 10 or later, current: " + System.getProperty("java.version"));
+            return -1;
+        }
+        String home = app.getHome();
+        File archive = getArchive(home);
+        if (archive == null) {
+            LOG.error("AppCDS is not supported for class path");
+            return -1;
+        }
+        List<String> main = mainCommand();
+        if (main == null) {
+            LOG.error("cannot determine main class of application");
+            return -1;
+        }
+        File dir = getDirectory(home);
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOG.error("cannot create directory: " + dir);
+            return -1;
+        }
+        File classList = new File(dir, archive.getName().replaceFirst("\\.jsa$", ".classlist"));
+        try (Timeline.Span span = Timeline.begin("cds", "train")) {
+            // 1. exercise startup to collect loaded classes
+            List<String> cmd = new ArrayList<>();
+            cmd.add(javaCommand());
+            cmd.addAll(inputArguments());
+            cmd.add("-D" + MODE_PROPERTY + "=" + DUMP);
+            cmd.add("-XX:DumpLoadedClassList=" + classList.getPath());
+            cmd.addAll(main);
+            cmd.addAll(Arrays.asList(app.getArguments()));
+            int status = execute(cmd);
+            if (status != 0) {
+                LOG.error("training run exited with status: " + status);
+                return status;
+            }
+
+            // 2. dump archive of the class list
+            cmd.clear();
+            cmd.add(javaCommand());
+            if (feature == 10) {
+                cmd.add("-XX:+UseAppCDS");
+            }
+            cmd.add("-Xshare:dump");
+            cmd.add("-XX:SharedClassListFile=" + classList.getPath());
+            cmd.add("-XX:SharedArchiveFile=" + archive.getPath());
+            cmd.add("-cp");
+            cmd.add(System.getProperty("java.class.path"));
+            status = execute(cmd);
+            if (status != 0) {
+                LOG.error("cannot dump archive, exited with status: " + status);
+                return status;
+            }
+
+            // 3. argument file for launcher
+            writeArgsFile(home, archive);
+            removeStale(dir, archive);
+            return 0;
+        } catch (IOException | InterruptedException e) {
+            LOG.error("cannot train class data sharing", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Removes the argument file and archives if class path changed since last training.
+     *
+     * @param home home of application
+     */
+    static void validate(String home) {
+        File argsFile = getArgsFile(home);
+        if (!argsFile.exists()) {
+            return;
+        }
+        File archive = getArchive(home);
+        if (archive == null || archive.exists()) {
+            return;
+        }
+        LOG.info("class path changed, remove stale archive: " + argsFile);
+        if (!argsFile.delete()) {
+            LOG.debug("cannot delete file: " + argsFile);
+        }
+        removeStale(getDirectory(home), null);
+    }
+
+    private static void writeArgsFile(String home, File archive) throws IOException {
+        File file = getArgsFile(home);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            writer.write(quote("-XX:SharedArchiveFile=" + archive.getAbsolutePath()));
+            writer.write(System.lineSeparator());
+            writer.write("-Xshare:auto");
+            writer.write(System.lineSeparator());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void removeStale(File dir, File archive) {
+        String prefix = archive != null ? archive.getName().replaceFirst("\\.jsa$", ".") : null;
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".jsa") || name.endsWith(".classlist"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if ((prefix == null || !file.getName().startsWith(prefix)) && !file.delete()) {
+                LOG.debug("cannot delete file: " + file);
+            }
+        }
+    }
+
+    private static int execute(List<String> cmd) throws IOException, InterruptedException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("execute: " + cmd);
+        }
+        return new ProcessBuilder(cmd).inheritIO().start().waitFor();
+    }
+
+    private static String javaCommand() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+
+    // JVM options of current process, except the ones for class data sharing and debugging
+    private static List<String> inputArguments() {
+        List<String> args = new ArrayList<>();
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-D" + MODE_PROPERTY + "=") || arg.startsWith("-Xshare:")
+                    || arg.startsWith("-XX:SharedArchiveFile=") || arg.startsWith("-XX:DumpLoadedClassList=")
+                    || arg.startsWith("-agentlib:jdwp") || arg.startsWith("-Xrunjdwp")) {
+                continue;
+            }
+            args.add(arg);
+        }
+        return args;
+    }
+
+    // null if main class is unknown, like launched by JNI
+    private static List<String> mainCommand() {
+        String command = System.getProperty("sun.java.command", "");
+        int end = command.indexOf(' ');
+        String main = end < 0 ? command : command.substring(0, end);
+        if (main.isEmpty()) {
+            return null;
+        }
+        if (main.endsWith(".jar")) {
+            return Arrays.asList("-jar", main);
+        } else {
+            return Arrays.asList("-cp", System.getProperty("java.class.path"), main);
+        }
+    }
+
+    private static int javaFeature() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+
+    private static String quote(String arg) {
+        return '"' + arg.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cleanup registered to application, run at most once.
+ */
+final class CleanupTask implements Runnable {
+    private static final Log LOG = LogFactory.getLog(CleanupTask.class);
+
+    private final Runnable task;
+
+    private final int group;
+
+    private final long timeout;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    // time when run by executor, valid if running is set
+    private volatile long runTime;
+
+    private volatile boolean running = false;
+
+    CleanupTask(Runnable task, int group, long timeout) {
+        this.task = task;
+        this.group = group;
+        this.timeout = timeout;
+    }
+
+    Runnable getTask() {
+        return task;
+    }
+
+    int getGroup() {
+        return group;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets remaining time before timed out, measured from the task run by executor.
+     *
+     * @return remaining time in milliseconds, the timeout if not run yet
+     */
+    long getRemaining() {
+        return running ? timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runTime) : timeout;
+    }
+
+    /**
+     * Marks the task started.
+     *
+     * @return <tt>false</tt> if already started
+     */
+    boolean start() {
+        return started.compareAndSet(false, true);
+    }
+
+    @Override
+    public void run() {
+        runTime = System.nanoTime();
+        running = true;
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOG.error("cleanup failed: " + task, e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+/**
+ * Java Flight Recorder events of the framework.
+ * <p>Events are disabled by default, enable them in JFR settings (category <tt>PW GAF</tt>).
+ * If JFR is not supported by the JVM (or the framework is built without JFR support),
+ * all events are no-op.
+ * <p>Usage:
+ * <pre>
+ * try (GafEvents.Scope scope = GafEvents.command("cli", name)) {
+ *     // perform the command
+ * }
+ * </pre>
+ */
+public final class GafEvents {
+    private static final Scope NOOP = () -> {
+    };
+
+    private static final Provider provider;
+
+    private static final boolean supported;
+
+    static {
+        Provider jfr = null;
+        try {
+            Class.forName("jdk.jfr.Event");
+            jfr = (Provider) Class.forName("pw.phylame.gaf.core.JfrEvents").newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // JFR not supported
+        }
+        supported = jfr != null;
+        provider = supported ? jfr : new Provider() {
+        };
+    }
+
+    private GafEvents() {
+    }
+
+    /**
+     * Tests whether JFR events is supported.
+     *
+     * @return <tt>true</tt> if supported
+     */
+    public static boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Begins event of plugin initializing or destroying.
+     *
+     * @param operation <tt>initialize</tt> or <tt>destroy</tt>
+     * @param plugin    class name of the plugin
+     * @return the event scope
+     */
+    public static Scope plugin(String operation, String plugin) {
+        return provider.plugin(operation, plugin);
+    }
+
+    /**
+     * Begins event of command performing.
+     *
+     * @param source  source of the command, e.g. <tt>cli</tt>, <tt>ixin</tt>
+     * @param command name of the command
+     * @return the event scope
+     */
+    public static Scope command(String source, String command) {
+        return provider.command(source, command);
+    }
+
+    /**
+     * Begins event of settings loading or syncing.
+     *
+     * @param operation <tt>load</tt> or <tt>sync</tt>
+     * @param path      path of settings file
+     * @return the event scope
+     */
+    public static Scope settings(String operation, String path) {
+        return provider.settings(operation, path);
+    }
+
+    /**
+     * Begins event of resource loading.
+     *
+     * @param type type of the resource, e.g. <tt>icon</tt>, <tt>image</tt>
+     * @param path path of the resource
+     * @return the event scope
+     */
+    public static Scope resource(String type, String path) {
+        return provider.resource(type, path);
+    }
+
+    /**
+     * Begins event of undo or redo.
+     *
+     * @param operation <tt>undo</tt> or <tt>redo</tt>
+     * @param message   message of the task
+     * @return the event scope
+     */
+    public static Scope undo(String operation, String message) {
+        return provider.undo(operation, message);
+    }
+
+    /**
+     * Scope of an event, the event is committed when closed.
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    interface Provider {
+        default Scope plugin(String operation, String plugin) {
+            return NOOP;
+        }
+
+        default Scope command(String source, String command) {
+            return NOOP;
+        }
+
+        default Scope settings(String operation, String path) {
+            return NOOP;
+        }
+
+        default Scope resource(String type, String path) {
+            return NOOP;
+        }
+
+        default Scope undo(String operation, String message) {
+            return NOOP;
+        }
+    }
+}
@@ -19,14 +19,21 @@
 package pw.phylame.gaf.core;
 
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLClassLoader;
+import java.net.URISyntaxException;
+import java.io.File;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Utility class for GAF.
@@ -52,11 +59,7 @@ public final class GafUtilities {
         PrivilegedAction<Enumeration<URL>> action = () -> {
             Enumeration<URL> urls = null;
             try {
-                if (loader != null) {
-                    urls = loader.getResources(name);
-                } else {
-                    urls = ClassLoader.getSystemResources(name);
-                }
+                urls = ResourceIndex.findResources(loader, name);
             } catch (IOException | NoSuchMethodError e) {
                 // ignore
             }
@@ -67,14 +70,29 @@ public final class GafUtilities {
 
     public static List<String> linesOfResource(String path, ClassLoader classLoader,
                                                boolean skipEmpty) throws IOException {
-        ArrayList<String> lines = new ArrayList<>();
         Enumeration<URL> urls = resourcesForPath(classLoader, path);
         if (urls == null) {
-            return lines;
+            return new ArrayList<>();
         }
+        return linesOfURLs(urls, skipEmpty, true);
+    }
+
+    /**
+     * Reads lines of all specified URLs.
+     *
+     * @param urls      the URLs
+     * @param skipEmpty <tt>true</tt> to skip empty lines
+     * @param useCaches <tt>false</tt> to read content of jar file not cached by JVM
+     * @return list of trimmed lines
+     * @throws IOException if occurs IO errors
+     */
+    public static List<String> linesOfURLs(Enumeration<URL> urls, boolean skipEmpty,
+                                           boolean useCaches) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
         while (urls.hasMoreElements()) {
-            URL url = urls.nextElement();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
+            URLConnection conn = urls.nextElement().openConnection();
+            conn.setUseCaches(useCaches);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
             String line;
             while ((line = reader.readLine()) != null) {
                 line = line.trim();
@@ -112,4 +130,83 @@ public final class GafUtilities {
         br.close();
         return tags;
     }
+
+    /**
+     * Gets class path entries visible to specified class loader, in order of lookup of the class loader.
+     *
+     * @param classLoader the class loader, <tt>null</tt> for system class loader
+     * @return list of entries, or <tt>null</tt> if the class loader is not supported
+     */
+    public static List<File> classpathEntries(ClassLoader classLoader) {
+        ClassLoader systemLoader = ClassLoader.getSystemClassLoader();
+        List<File> entries = new ArrayList<>();
+        for (String path : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                entries.add(new File(path));
+            }
+        }
+        // class loaders delegate to parent first
+        List<ClassLoader> loaders = new ArrayList<>();
+        for (ClassLoader loader = classLoader; loader != null && loader != systemLoader; loader = loader.getParent()) {
+            if (!(loader instanceof URLClassLoader)) {     // unknown class loader
+                return null;
+            }
+            loaders.add(0, loader);
+        }
+        for (ClassLoader loader : loaders) {
+            for (URL url : ((URLClassLoader) loader).getURLs()) {
+                if (!"file".equals(url.getProtocol())) {
+                    return null;
+                }
+                try {
+                    entries.add(new File(url.toURI()));
+                } catch (URISyntaxException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Computes fingerprint of class path visible to specified class loader.
+     * <p>The fingerprint consists of path, size and last modified time of each class path
+     * entry. For directory entry, the specified resources in it are also counted.
+     *
+     * @param classLoader the class loader, <tt>null</tt> for system class loader
+     * @param resources   path of resources
+     * @return the fingerprint, or <tt>null</tt> if the class loader is not supported
+     */
+    public static String classpathFingerprint(ClassLoader classLoader, String... resources) {
+        List<File> entries = classpathEntries(classLoader);
+        if (entries == null) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder b = new StringBuilder();
+        for (File entry : entries) {
+            b.setLength(0);
+            b.append(entry.getAbsolutePath()).append('|')
+                    .append(entry.length()).append('|')
+                    .append(entry.lastModified());
+            if (entry.isDirectory()) {
+                for (String resource : resources) {
+                    File file = new File(entry, resource);
+                    b.append('|').append(file.length()).append('|').append(file.lastModified());
+                }
+            }
+            b.append('\n');
+            digest.update(b.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        b.setLength(0);
+        for (byte x : digest.digest()) {
+            b.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        }
+        return b.toString();
+    }
 }
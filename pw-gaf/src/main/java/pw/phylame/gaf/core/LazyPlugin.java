@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Collections;
+
+/**
+ * Proxy of plugin activated by triggers.
+ * <p>The plugin class is not loaded until one of its triggers fired.
+ */
+final class LazyPlugin implements Plugin {
+    private final PluginEntry entry;
+
+    private final PluginLoader loader;
+
+    private volatile Plugin target = null;
+
+    // activation failed, never try again
+    volatile boolean failed = false;
+
+    LazyPlugin(PluginEntry entry, PluginLoader loader) {
+        this.entry = entry;
+        this.loader = loader;
+    }
+
+    PluginEntry getEntry() {
+        return entry;
+    }
+
+    PluginLoader getLoader() {
+        return loader;
+    }
+
+    Plugin getTarget() {
+        return target;
+    }
+
+    void setTarget(Plugin target) {
+        this.target = target;
+    }
+
+    boolean isActivated() {
+        return target != null;
+    }
+
+    /**
+     * Loads and initializes the plugin and its lazy dependencies.
+     *
+     * @return newly initialized plugins, empty if already activated or failed
+     */
+    List<Plugin> activate() {
+        return target != null || failed ? Collections.emptyList() : loader.activate(this);
+    }
+
+    @Override
+    public Map<String, Object> properties() {
+        Plugin plugin = target;
+        return plugin != null ? plugin.properties() : new HashMap<>(entry.getMetadata());
+    }
+
+    @Override
+    public void initialize() {
+        // initialized when activated
+    }
+
+    @Override
+    public void destroy() {
+        Plugin plugin = target;
+        if (plugin != null) {
+            plugin.destroy();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LazyPlugin{" + entry.getClassName() + "}";
+    }
+}
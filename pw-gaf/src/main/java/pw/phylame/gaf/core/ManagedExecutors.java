@@ -0,0 +1,338 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Executors managed by application, shut down when application terminated.
+ * <ul>
+ * <li>compute: fork-join pool for CPU-bound tasks</li>
+ * <li>io: bounded pool for blocking tasks, uses virtual threads if supported by JVM</li>
+ * <li>scheduler: pool for delayed and periodic tasks</li>
+ * </ul>
+ * Executors are created when first used.
+ */
+public final class ManagedExecutors {
+    private static final Log LOG = LogFactory.getLog(ManagedExecutors.class);
+
+    public static final String COMPUTE = "compute";
+
+    public static final String IO = "io";
+
+    public static final String SCHEDULER = "scheduler";
+
+    /**
+     * Parallelism of compute pool.
+     */
+    public static int computeParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum number of threads of io pool, ignored when using virtual threads.
+     */
+    public static int ioThreads = 64;
+
+    /**
+     * Capacity of task queue of io pool, task is run in caller thread if the queue is full.
+     */
+    public static int ioQueueCapacity = 1024;
+
+    /**
+     * Use virtual threads for io pool if supported by JVM.
+     */
+    public static boolean useVirtualThreads = true;
+
+    public static int schedulerThreads = 1;
+
+    /**
+     * Time in milliseconds for waiting tasks completed when shutting down.
+     */
+    public static long shutdownTimeout = 5000;
+
+    private final String prefix;
+
+    private final Map<String, ExecutorService> executors = new LinkedHashMap<>();
+
+    private boolean shutdown = false;
+
+    ManagedExecutors(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Gets the fork-join pool for CPU-bound tasks.
+     *
+     * @return the pool
+     */
+    public ForkJoinPool getComputeExecutor() {
+        return (ForkJoinPool) executor(COMPUTE);
+    }
+
+    /**
+     * Gets the executor for blocking tasks.
+     *
+     * @return the executor
+     */
+    public ExecutorService getIOExecutor() {
+        return executor(IO);
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return (ScheduledExecutorService) executor(SCHEDULER);
+    }
+
+    private synchronized ExecutorService executor(String name) {
+        if (shutdown) {
+            throw new RejectedExecutionException("executors already shut down");
+        }
+        ExecutorService executor = executors.get(name);
+        if (executor == null) {
+            executor = create(name);
+            executors.put(name, executor);
+        }
+        return executor;
+    }
+
+    private ExecutorService create(String name) {
+        switch (name) {
+            case COMPUTE:
+                return new ForkJoinPool(Math.max(1, computeParallelism), pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName(prefix + "-compute-" + (thread.getPoolIndex() + 1));
+                    thread.setDaemon(true);
+                    return thread;
+                }, null, false);
+            case IO: {
+                ExecutorService executor = useVirtualThreads ? newVirtualExecutor(prefix + "-io-") : null;
+                if (executor != null) {
+                    return new CountingExecutor(executor);
+                }
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, ioThreads), Math.max(1, ioThreads),
+                        60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(Math.max(1, ioQueueCapacity)),
+                        new NamedThreadFactory(prefix + "-io-"), new ThreadPoolExecutor.CallerRunsPolicy());
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+            }
+            case SCHEDULER: {
+                ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(Math.max(1, schedulerThreads),
+                        new NamedThreadFactory(prefix + "-scheduler-"));
+                pool.setRemoveOnCancelPolicy(true);
+                return pool;
+            }
+            default:
+                throw new IllegalArgumentException("unknown executor: " + name);
+        }
+    }
+
+    /**
+     * Creates executor running each task in a new virtual thread, only for JVM supports virtual thread.
+     */
+    private static ExecutorService newVirtualExecutor(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets statistics of created executors.
+     *
+     * @return map of executor name to statistics
+     */
+    public synchronized Map<String, Statistics> statistics() {
+        Map<String, Statistics> results = new LinkedHashMap<>();
+        for (Map.Entry<String, ExecutorService> entry : executors.entrySet()) {
+            ExecutorService executor = entry.getValue();
+            Statistics stats;
+            if (executor instanceof ForkJoinPool) {
+                ForkJoinPool pool = (ForkJoinPool) executor;
+                stats = new Statistics(pool.getActiveThreadCount(), pool.getPoolSize(),
+                        pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount(), -1);
+            } else if (executor instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+                stats = new Statistics(pool.getActiveCount(), pool.getPoolSize(),
+                        pool.getQueue().size(), pool.getCompletedTaskCount());
+            } else {
+                CountingExecutor counter = (CountingExecutor) executor;
+                stats = new Statistics(counter.active.get(), counter.active.get(), 0, counter.completed.sum());
+            }
+            results.put(entry.getKey(), stats);
+        }
+        return results;
+    }
+
+    /**
+     * Shuts down all executors and waits for running tasks completed.
+     */
+    void shutdown() {
+        List<ExecutorService> services;
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            services = new ArrayList<>(executors.values());
+        }
+        for (ExecutorService executor : services) {
+            executor.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeout);
+        for (ExecutorService executor : services) {
+            try {
+                if (!executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    LOG.error("executor not terminated in " + shutdownTimeout + " ms, interrupting it: " + executor);
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Statistics of an executor.
+     */
+    public static final class Statistics {
+        private final int activeCount;
+        private final int poolSize;
+        private final long queueSize;
+        private final long completedCount;
+
+        Statistics(int activeCount, int poolSize, long queueSize, long completedCount) {
+            this.activeCount = activeCount;
+            this.poolSize = poolSize;
+            this.queueSize = queueSize;
+            this.completedCount = completedCount;
+        }
+
+        /**
+         * Gets number of threads running tasks.
+         */
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        /**
+         * Gets number of tasks waiting in queue.
+         */
+        public long getQueueSize() {
+            return queueSize;
+        }
+
+        /**
+         * Gets number of completed tasks, <tt>-1</tt> if not supported.
+         */
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "active=" + activeCount + ", pool=" + poolSize + ", queued=" + queueSize
+                    + ", completed=" + completedCount;
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Executor counts active and completed tasks of its delegate.
+     */
+    private static final class CountingExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final AtomicInteger active = new AtomicInteger();
+        private final LongAdder completed = new LongAdder();
+
+        private CountingExecutor(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(() -> {
+                active.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.increment();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
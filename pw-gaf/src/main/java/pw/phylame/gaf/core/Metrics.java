@@ -0,0 +1,443 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registry of application metrics, exported in Prometheus text format.
+ * <p>Metrics should be looked up once and kept by caller, recording values to
+ * {@link Counter} and {@link Histogram} is lock-free and allocation-free.
+ * <p>Metric name may have labels, e.g. <tt>timer("gaf_command_seconds", "command", "open")</tt>.
+ */
+public final class Metrics implements Closeable {
+    private static final Log LOG = LogFactory.getLog(Metrics.class);
+
+    /**
+     * Name of system property for path of metrics file.
+     */
+    public static final String FILE_PROPERTY = "pw.gaf.metrics.file";
+
+    /**
+     * Name of system property for localhost port serving metrics.
+     */
+    public static final String PORT_PROPERTY = "pw.gaf.metrics.port";
+
+    /**
+     * Period of exporting metrics to file in milliseconds.
+     */
+    public static long exportPeriod = 10000;
+
+    private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    private final ManagedExecutors executors;
+
+    private ScheduledFuture<?> exportTask;
+
+    private File exportFile;
+
+    private HttpServer server;
+
+    Metrics(ManagedExecutors executors) {
+        this.executors = executors;
+    }
+
+    public Counter counter(String name, String... labels) {
+        return (Counter) metrics.computeIfAbsent(key(name, labels), k -> new Counter(name, labels(labels)));
+    }
+
+    /**
+     * Gets histogram of values.
+     *
+     * @param name   name of the metric
+     * @param labels pairs of label name and value
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String... labels) {
+        return (Histogram) metrics.computeIfAbsent(key(name, labels), k -> new Histogram(name, labels(labels), 1));
+    }
+
+    /**
+     * Gets histogram of durations, values are recorded in nanoseconds and exported in seconds.
+     *
+     * @param name   name of the metric, should be ends with <tt>_seconds</tt>
+     * @param labels pairs of label name and value
+     * @return the histogram
+     */
+    public Histogram timer(String name, String... labels) {
+        return (Histogram) metrics.computeIfAbsent(key(name, labels), k -> new Histogram(name, labels(labels), 1e-9));
+    }
+
+    /**
+     * Registers gauge evaluated when exporting.
+     *
+     * @param name     name of the metric
+     * @param supplier supplier of the value
+     * @param labels   pairs of label name and value
+     */
+    public void gauge(String name, DoubleSupplier supplier, String... labels) {
+        metrics.put(key(name, labels), new Gauge(name, labels(labels), supplier));
+    }
+
+    public void remove(String name, String... labels) {
+        metrics.remove(key(name, labels));
+    }
+
+    private static String key(String name, String[] labels) {
+        return labels.length == 0 ? name : name + "{" + labels(labels) + "}";
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be pairs of name and value");
+        }
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append(sanitize(labels[i])).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return b.toString();
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder b = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); ++i) {
+            char ch = name.charAt(i);
+            b.append(ch < 128 && (Character.isLetterOrDigit(ch) || ch == '_' || ch == ':') ? ch : '_');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Writes all metrics in Prometheus text format.
+     *
+     * @param writer the writer
+     * @throws IOException if occurs IO errors
+     */
+    public void write(Writer writer) throws IOException {
+        Map<String, Metric> sorted = new TreeMap<>(metrics);
+        String lastName = null;
+        for (Metric metric : sorted.values()) {
+            if (!metric.name.equals(lastName)) {
+                writer.write("# TYPE " + metric.name + " " + metric.type() + "\n");
+                lastName = metric.name;
+            }
+            metric.write(writer);
+        }
+    }
+
+    /**
+     * Exports metrics to file periodically.
+     *
+     * @param file the file, replaced atomically in each export
+     */
+    public synchronized void exportTo(File file) {
+        if (exportTask != null) {
+            exportTask.cancel(false);
+        }
+        exportFile = file;
+        exportTask = executors.getScheduler().scheduleAtFixedRate(this::exportFile, exportPeriod, exportPeriod,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void exportFile() {
+        if (exportFile == null) {
+            return;
+        }
+        File tmp = new File(exportFile.getPath() + ".tmp");
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                    StandardCharsets.UTF_8))) {
+                write(writer);
+            }
+            Files.move(tmp.toPath(), exportFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.error("cannot export metrics to: " + exportFile, e);
+        }
+    }
+
+    /**
+     * Serves metrics on localhost with path <tt>/metrics</tt>.
+     *
+     * @param port the port, <tt>0</tt> for any free port
+     * @return the bound port
+     * @throws IOException if failed to bind the port
+     */
+    public synchronized int serve(int port) throws IOException {
+        if (server != null) {
+            server.stop(0);
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                write(writer);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, out.size());
+            try (OutputStream body = exchange.getResponseBody()) {
+                out.writeTo(body);
+            }
+        });
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops exporting, metrics are exported to file for the last time.
+     */
+    @Override
+    public synchronized void close() {
+        if (exportTask != null) {
+            exportTask.cancel(false);
+            exportTask = null;
+            exportFile();
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private static String format(double value) {
+        if (value == (long) value) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.9g", value);
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String labels;
+
+        Metric(String name, String labels) {
+            this.name = sanitize(name);
+            this.labels = labels;
+        }
+
+        abstract String type();
+
+        abstract void write(Writer writer) throws IOException;
+
+        String series(String suffix, String extra) {
+            String all = labels.isEmpty() ? extra : extra.isEmpty() ? labels : labels + "," + extra;
+            return name + suffix + (all.isEmpty() ? "" : "{" + all + "}");
+        }
+    }
+
+    /**
+     * Monotonic counter.
+     */
+    public static final class Counter extends Metric {
+        private final LongAdder adder = new LongAdder();
+
+        private Counter(String name, String labels) {
+            super(name, labels);
+        }
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long sum() {
+            return adder.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            writer.write(series("", "") + " " + adder.sum() + "\n");
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final DoubleSupplier supplier;
+
+        private Gauge(String name, String labels, DoubleSupplier supplier) {
+            super(name, labels);
+            this.supplier = supplier;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            writer.write(series("", "") + " " + format(supplier.getAsDouble()) + "\n");
+        }
+    }
+
+    /**
+     * Histogram with log-linear buckets (relative error about 3%), exported as summary.
+     */
+    public static final class Histogram extends Metric {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final double scale;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, String labels, double scale) {
+            super(name, labels);
+            this.scale = scale;
+        }
+
+        /**
+         * Records a value, negative value is recorded as zero.
+         *
+         * @param value the value
+         */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        /**
+         * Records duration from specified start time.
+         *
+         * @param startNanos start time from {@link System#nanoTime()}
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        static int index(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) - SUB_COUNT);
+        }
+
+        static long valueOf(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int shift = index / SUB_COUNT - 1;
+            long lower = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+            return lower + ((1L << shift) >> 1);
+        }
+
+        /**
+         * Gets estimated value at specified quantile.
+         *
+         * @param q the quantile, between 0 and 1
+         * @return the value
+         */
+        public long quantile(double q) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; ++i) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            return quantile(snapshot, total, q);
+        }
+
+        private long quantile(long[] snapshot, long total, double q) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(valueOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        String type() {
+            return "summary";
+        }
+
+        @Override
+        void write(Writer writer) throws IOException {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; ++i) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            for (double q : QUANTILES) {
+                writer.write(series("", "quantile=\"" + q + "\"") + " "
+                        + format(quantile(snapshot, total, q) * scale) + "\n");
+            }
+            writer.write(series("_sum", "") + " " + format(sum.sum() * scale) + "\n");
+            writer.write(series("_count", "") + " " + total + "\n");
+        }
+    }
+}
@@ -21,6 +21,12 @@ package pw.phylame.gaf.core;
 import java.util.Map;
 
 public interface Plugin {
+    /**
+     * Key of plugin dependencies in {@link #properties()}, value is collection or
+     * comma separated string of plugin class names.
+     * <p>Dependencies can also be declared in plugin manifest, see {@link PluginEntry}.
+     */
+    String DEPENDS = PluginEntry.DEPENDS;
 
     Map<String, Object> properties();
 
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.io.*;
+import java.util.List;
+import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of plugin entries, keyed by fingerprint of class path.
+ * <p>File syntax:</p>
+ * <ul>
+ * <li>first line is the fingerprint of class path</li>
+ * <li>each following line is a plugin entry in manifest syntax</li>
+ * </ul>
+ */
+final class PluginCache {
+    private static final Log LOG = LogFactory.getLog(PluginCache.class);
+
+    private static final String ENCODING = "UTF-8";
+
+    private final File file;
+
+    private final String fingerprint;
+
+    PluginCache(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Reads cached plugin entries.
+     *
+     * @return the entries, or <tt>null</tt> if no cache or the fingerprint not matched
+     */
+    List<PluginEntry> read() {
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING))) {
+            if (!fingerprint.equals(reader.readLine())) {
+                return null;
+            }
+            List<PluginEntry> entries = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                PluginEntry entry = PluginEntry.parse(line);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        } catch (IOException e) {
+            LOG.debug("cannot read plugin cache: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes plugin entries to cache file.
+     * <p>Content is written to a unique temporary file and then renamed to the cache file,
+     * so processes starting at the same time do not overwrite each other.
+     *
+     * @param entries the entries
+     */
+    void write(List<PluginEntry> entries) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOG.debug("cannot create directory for plugin cache: " + dir);
+            return;
+        }
+        File tmp;
+        try {
+            tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        } catch (IOException e) {
+            LOG.debug("cannot create temporary file for plugin cache: " + dir, e);
+            return;
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), ENCODING))) {
+            writer.write(fingerprint);
+            writer.write('\n');
+            for (PluginEntry entry : entries) {
+                writer.write(entry.toString());
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            LOG.debug("cannot write plugin cache: " + file, e);
+            deleteQuietly(tmp);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.debug("cannot replace plugin cache: " + file, e);
+            deleteQuietly(tmp);
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (!file.delete() && file.exists()) {
+            LOG.debug("cannot delete temporary file: " + file);
+        }
+    }
+
+    /**
+     * Writes plugin entries to cache file in background.
+     * <p>Manifests are rescanned in the caller when fingerprint not matched, because the entries
+     * are needed for loading plugins, only writing of the refreshed cache is deferred.
+     *
+     * @param entries the entries
+     */
+    void writeLater(List<PluginEntry> entries) {
+        Thread thread = new Thread(() -> write(entries), "gaf-plugin-cache");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.util.Map;
+import java.util.List;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Registration of one plugin in plugin manifest.
+ * <p>Syntax of manifest line: <tt>class_name[; key=value]*</tt>, for example:
+ * <pre>pw.phylame.foo.FooPlugin; depends=pw.phylame.foo.BarPlugin, pw.phylame.foo.BazPlugin</pre>
+ * <pre>pw.phylame.foo.LazyPlugin; triggers=command:open-file, service:pw.phylame.foo.Service</pre>
+ * <pre>pw.phylame.foo.SlowPlugin; budget=200</pre>
+ * Line starts with '#' is a comment line.
+ */
+public final class PluginEntry {
+    /**
+     * Metadata key of plugin dependencies, value is comma separated plugin class names.
+     */
+    public static final String DEPENDS = "depends";
+
+    /**
+     * Metadata key of plugin activation triggers, value is comma separated triggers.
+     * <p>Plugin with triggers is loaded and initialized only when one of its triggers fired.
+     */
+    public static final String TRIGGERS = "triggers";
+
+    /**
+     * Metadata key of plugin startup budget in milliseconds, overrides the default budget.
+     */
+    public static final String BUDGET = "budget";
+
+    /**
+     * Prefix of trigger fired when a command (CLI option or GUI action) is performed.
+     */
+    public static final String COMMAND_TRIGGER = "command:";
+
+    /**
+     * Prefix of trigger fired when looking up plugins by service type.
+     */
+    public static final String SERVICE_TRIGGER = "service:";
+
+    private final String className;
+
+    private final Map<String, String> metadata;
+
+    public PluginEntry(String className, Map<String, String> metadata) {
+        if (className == null) {
+            throw new NullPointerException("className");
+        }
+        this.className = className;
+        this.metadata = metadata != null ? metadata : Collections.emptyMap();
+    }
+
+    /**
+     * Parses plugin entry from line of manifest.
+     *
+     * @param line the line
+     * @return the entry, or <tt>null</tt> if the line is empty or comment
+     */
+    public static PluginEntry parse(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        String[] parts = line.split(";");
+        Map<String, String> metadata = new LinkedHashMap<>();
+        for (int i = 1; i < parts.length; ++i) {
+            int index = parts[i].indexOf('=');
+            if (index > 0) {
+                metadata.put(parts[i].substring(0, index).trim(), parts[i].substring(index + 1).trim());
+            }
+        }
+        return new PluginEntry(parts[0].trim(), metadata);
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Tests whether the plugin is activated lazily.
+     *
+     * @return <tt>true</tt> if any trigger declared
+     */
+    public boolean isLazy() {
+        return !getValues(TRIGGERS).isEmpty();
+    }
+
+    public Map<String, String> getMetadata() {
+        return Collections.unmodifiableMap(metadata);
+    }
+
+    public String getMetadata(String key) {
+        return metadata.get(key);
+    }
+
+    /**
+     * Gets comma separated values of metadata.
+     *
+     * @param key key of the metadata
+     * @return list of values, never be <tt>null</tt>
+     */
+    public List<String> getValues(String key) {
+        return splitValues(metadata.get(key));
+    }
+
+    static List<String> splitValues(String str) {
+        List<String> values = new ArrayList<>();
+        if (str != null) {
+            for (String value : str.split(",")) {
+                value = value.trim();
+                if (!value.isEmpty()) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder(className);
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            b.append("; ").append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Loads plugins and initializes them in order of dependencies.
+ * <p>Plugins without dependencies between each other are initialized in parallel.
+ * Failure of one plugin only skips the plugin and plugins depending on it.
+ * <p>Plugin exceeded its startup budget is deferred, it and plugins depending on it
+ * continue initializing in background while loading returns.
+ * <p>Plugins declared triggers are registered as {@link LazyPlugin} and
+ * initialized when activated.
+ */
+final class PluginLoader {
+    private static final Log LOG = LogFactory.getLog(PluginLoader.class);
+
+    private final ClassLoader classLoader;
+
+    // initialized plugins of the application, mapped by class name
+    private final Map<String, Plugin> registry;
+
+    // lazy plugins of this loader
+    private final Map<String, LazyPlugin> proxies = new ConcurrentHashMap<>();
+
+    // dependencies of plugins initialized by this loader, deferred plugins are added in background
+    private final Map<String, Collection<String>> dependencies = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private final Metrics metrics;
+
+    // completed when all plugins initialized by this loader settled, including deferred ones
+    private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+
+    PluginLoader(ClassLoader classLoader, Map<String, Plugin> registry, Metrics metrics) {
+        this.classLoader = classLoader;
+        this.registry = registry;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Loads and initializes plugins of specified entries.
+     *
+     * @param entries   the plugin entries
+     * @param executor  executor for initializing plugins
+     * @param scheduler scheduler for startup budget
+     * @param budget    default startup budget of each plugin in milliseconds, 0 for unlimited
+     * @param deferred  invoked when a deferred plugin initialized
+     * @return initialized plugins (dependencies are placed before their dependents),
+     * followed by proxies of lazy plugins
+     */
+    synchronized List<Plugin> load(List<PluginEntry> entries, Executor executor, ScheduledExecutorService scheduler,
+                                   long budget, Consumer<Plugin> deferred) {
+        List<PluginEntry> eagerEntries = new ArrayList<>();
+        List<LazyPlugin> lazyPlugins = new ArrayList<>();
+        for (PluginEntry entry : entries) {
+            String name = entry.getClassName();
+            if (registry.containsKey(name) || proxies.containsKey(name)) {
+                continue;
+            }
+            if (entry.isLazy()) {
+                LazyPlugin proxy = new LazyPlugin(entry, this);
+                proxies.put(name, proxy);
+                lazyPlugins.add(proxy);
+            } else {
+                eagerEntries.add(entry);
+            }
+        }
+        List<Plugin> plugins = initialize(eagerEntries, executor, scheduler, budget, deferred);
+        for (LazyPlugin proxy : lazyPlugins) {
+            if (!proxy.isActivated()) {     // not required by eager plugins
+                plugins.add(proxy);
+            }
+        }
+        return plugins;
+    }
+
+    /**
+     * Runs the action when all plugins loaded by this loader settled, including deferred plugins.
+     *
+     * @param action the action
+     */
+    synchronized void whenSettled(Runnable action) {
+        pending.whenComplete((v, e) -> action.run());
+    }
+
+    ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Gets class names of plugins of this loader, including not activated lazy plugins.
+     *
+     * @return set of names
+     */
+    synchronized Set<String> pluginNames() {
+        Set<String> names;
+        synchronized (dependencies) {
+            names = new LinkedHashSet<>(dependencies.keySet());
+        }
+        names.addAll(proxies.keySet());
+        return names;
+    }
+
+    /**
+     * Tests whether any plugin of this loader depends on one of specified plugins.
+     *
+     * @param names class names of plugins
+     * @return <tt>true</tt> if depended
+     */
+    synchronized boolean dependsOn(Collection<String> names) {
+        synchronized (dependencies) {
+            for (Collection<String> values : dependencies.values()) {
+                if (!Collections.disjoint(values, names)) {
+                    return true;
+                }
+            }
+        }
+        for (LazyPlugin proxy : proxies.values()) {
+            if (!proxy.isActivated() && !Collections.disjoint(proxy.getEntry().getValues(PluginEntry.DEPENDS), names)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Activates the lazy plugin.
+     *
+     * @param proxy the lazy plugin
+     * @return newly initialized plugins
+     */
+    synchronized List<Plugin> activate(LazyPlugin proxy) {
+        if (proxy.isActivated() || proxy.failed) {
+            return Collections.emptyList();
+        }
+        List<Plugin> plugins = initialize(Collections.singletonList(proxy.getEntry()), Runnable::run, null, 0, null);
+        if (!proxy.isActivated()) {
+            proxy.failed = true;
+        }
+        return plugins;
+    }
+
+    private List<Plugin> initialize(List<PluginEntry> entries, Executor executor, ScheduledExecutorService scheduler,
+                                    long budget, Consumer<Plugin> deferred) {
+        Map<String, Node> nodes = new LinkedHashMap<>();
+        LinkedList<PluginEntry> queue = new LinkedList<>(entries);
+        while (!queue.isEmpty()) {
+            PluginEntry entry = queue.removeFirst();
+            if (nodes.containsKey(entry.getClassName()) || registry.containsKey(entry.getClassName())) {
+                continue;
+            }
+            Plugin plugin = instantiate(entry);
+            if (plugin == null) {
+                continue;
+            }
+            Node node = new Node(entry, plugin);
+            nodes.put(entry.getClassName(), node);
+            // lazy dependencies are activated together
+            for (String name : node.dependencyNames) {
+                LazyPlugin proxy = proxies.get(name);
+                if (proxy != null && !proxy.isActivated() && !nodes.containsKey(name)) {
+                    queue.add(proxy.getEntry());
+                }
+            }
+        }
+        for (Node node : nodes.values()) {
+            for (String name : node.dependencyNames) {
+                Node dependency = nodes.get(name);
+                if (dependency == null) {
+                    if (!registry.containsKey(name)) {
+                        LOG.error("missing dependency of plugin " + node.name() + ": " + name);
+                        node.broken = true;
+                    }
+                } else if (dependency != node) {
+                    node.dependencies.add(dependency);
+                    dependency.dependents.add(node);
+                }
+            }
+        }
+        List<Node> order = sort(nodes.values());
+        CompletableFuture<?>[] all = new CompletableFuture<?>[order.size()];
+        int n = 0;
+        for (Node node : order) {
+            if (node.broken) {
+                node.future = new CompletableFuture<>();
+                node.future.completeExceptionally(new IllegalStateException("broken plugin: " + node.name()));
+            } else {
+                CompletableFuture<?>[] futures = new CompletableFuture<?>[node.dependencies.size()];
+                int i = 0;
+                for (Node dependency : node.dependencies) {
+                    futures[i++] = dependency.future;
+                    // dependents of deferred plugin are deferred too
+                    dependency.startup.thenAccept(ready -> {
+                        if (!ready) {
+                            node.startup.complete(false);
+                        }
+                    });
+                }
+                node.budget = budgetOf(node, budget);
+                node.scheduler = scheduler;
+                node.future = CompletableFuture.allOf(futures).thenRunAsync(node::initialize, executor);
+            }
+            node.future.whenComplete((v, e) -> {
+                if (e == null) {
+                    node.startup.complete(true);
+                } else {
+                    node.startup.completeExceptionally(e);
+                }
+            });
+            all[n++] = node.future;
+        }
+        pending = CompletableFuture.allOf(pending, CompletableFuture.allOf(all));
+        List<Plugin> plugins = new ArrayList<>(order.size());
+        for (Node node : order) {
+            boolean ready;
+            try {
+                ready = node.startup.join();
+            } catch (CompletionException e) {
+                failed(node);
+                continue;
+            }
+            if (ready) {
+                register(node);
+                plugins.add(node.plugin);
+            } else {
+                defer(node, deferred);
+            }
+        }
+        return plugins;
+    }
+
+    private long budgetOf(Node node, long budget) {
+        String value = node.entry.getMetadata(PluginEntry.BUDGET);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOG.error("invalid startup budget of plugin " + node.name() + ": " + value);
+            }
+        }
+        return budget;
+    }
+
+    private void failed(Node node) {
+        if (!node.failed) {
+            LOG.error("skipped plugin " + node.name() + " for failure of its dependencies");
+        }
+        metrics.counter("gaf_plugin_failures_total").increment();
+    }
+
+    private void register(Node node) {
+        metrics.counter("gaf_plugins_initialized_total").increment();
+        registry.put(node.name(), node.plugin);
+        dependencies.put(node.name(), node.dependencyNames);
+        LazyPlugin proxy = proxies.get(node.name());
+        if (proxy != null) {
+            proxy.setTarget(node.plugin);
+        }
+    }
+
+    private void defer(Node node, Consumer<Plugin> deferred) {
+        long start = node.start;
+        if (start != 0) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOG.warn("plugin " + node.name() + " exceeded startup budget of " + node.budget + " ms, "
+                    + "deferred to background after " + elapsed + " ms");
+        } else {
+            LOG.warn("plugin " + node.name() + " deferred to background for its deferred dependencies");
+        }
+        metrics.counter("gaf_plugin_deferred_total").increment();
+        node.future.whenComplete((v, e) -> {
+            if (e != null) {
+                failed(node);
+                return;
+            }
+            register(node);
+            LOG.info("deferred plugin " + node.name() + " ready after "
+                    + TimeUnit.NANOSECONDS.toMillis(node.end - node.start) + " ms");
+            if (deferred != null) {
+                deferred.accept(node.plugin);
+            }
+        });
+    }
+
+    private Plugin instantiate(PluginEntry entry) {
+        try (Timeline.Span span = Timeline.begin("plugin", "load " + entry.getClassName())) {
+            Class<?> clazz = Class.forName(entry.getClassName(), true, classLoader);
+            if (Plugin.class.isAssignableFrom(clazz)) {
+                return (Plugin) clazz.newInstance();
+            } else {
+                LOG.debug("invalid plugin class: " + clazz);
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            LOG.error("cannot create plugin: " + entry.getClassName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Sorts nodes topologically, nodes in dependency cycle are excluded.
+     */
+    private static List<Node> sort(Collection<Node> nodes) {
+        Map<Node, Integer> degrees = new LinkedHashMap<>();
+        LinkedList<Node> queue = new LinkedList<>();
+        for (Node node : nodes) {
+            degrees.put(node, node.dependencies.size());
+            if (node.dependencies.isEmpty()) {
+                queue.add(node);
+            }
+        }
+        List<Node> order = new ArrayList<>(nodes.size());
+        while (!queue.isEmpty()) {
+            Node node = queue.removeFirst();
+            order.add(node);
+            for (Node dependent : node.dependents) {
+                int degree = degrees.get(dependent) - 1;
+                degrees.put(dependent, degree);
+                if (degree == 0) {
+                    queue.add(dependent);
+                }
+            }
+        }
+        if (order.size() != nodes.size()) {
+            for (Node node : nodes) {
+                if (degrees.get(node) > 0) {
+                    LOG.error("skipped plugin " + node.name() + " for cyclic or unresolved dependencies");
+                }
+            }
+        }
+        return order;
+    }
+
+    private final class Node {
+        private final PluginEntry entry;
+        private final Plugin plugin;
+        private final Collection<Node> dependencies = new LinkedHashSet<>();
+        private final Collection<Node> dependents = new LinkedHashSet<>();
+        private final Collection<String> dependencyNames;
+        private CompletableFuture<Void> future;
+        // completed with false if deferred, or completed with the future
+        private final CompletableFuture<Boolean> startup = new CompletableFuture<>();
+        private long budget;
+        private ScheduledExecutorService scheduler;
+        private volatile long start = 0;
+        private volatile long end = 0;
+        private boolean broken = false;
+        private volatile boolean failed = false;
+
+        private Node(PluginEntry entry, Plugin plugin) {
+            this.entry = entry;
+            this.plugin = plugin;
+            dependencyNames = collectDependencies();
+        }
+
+        private String name() {
+            return entry.getClassName();
+        }
+
+        private Collection<String> collectDependencies() {
+            Collection<String> names = new LinkedHashSet<>(entry.getValues(PluginEntry.DEPENDS));
+            Map<String, Object> properties = plugin.properties();
+            Object value = properties != null ? properties.get(Plugin.DEPENDS) : null;
+            if (value instanceof Collection) {
+                for (Object name : (Collection<?>) value) {
+                    names.add(name.toString());
+                }
+            } else if (value != null) {
+                names.addAll(PluginEntry.splitValues(value.toString()));
+            }
+            return names;
+        }
+
+        private void initialize() {
+            Thread thread = Thread.currentThread();
+            ClassLoader contextLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(classLoader);
+            ScheduledFuture<?> timeout = null;
+            try (Timeline.Span span = Timeline.begin("plugin", "initialize " + name());
+                 GafEvents.Scope event = GafEvents.plugin("initialize", name())) {
+                start = System.nanoTime();
+                if (budget > 0 && scheduler != null) {
+                    timeout = scheduler.schedule(() -> startup.complete(false), budget, TimeUnit.MILLISECONDS);
+                }
+                plugin.initialize();
+            } catch (RuntimeException | LinkageError e) {
+                failed = true;
+                LOG.error("cannot initialize plugin: " + name(), e);
+                throw e;
+            } finally {
+                thread.setContextClassLoader(contextLoader);
+                end = System.nanoTime();
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                metrics.timer("gaf_plugin_initialize_seconds", "plugin", name()).recordSince(start);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ResourceBundle;
+
+/**
+ * Plugins loaded from one jar file by an isolated class loader.
+ */
+final class PluginModule {
+    private final File file;
+
+    private final URLClassLoader classLoader;
+
+    private final PluginLoader loader;
+
+    PluginModule(File file, ClassLoader parent, Map<String, Plugin> registry, Metrics metrics) throws IOException {
+        this.file = file;
+        classLoader = new URLClassLoader(new URL[]{file.toURI().toURL()}, parent);
+        loader = new PluginLoader(classLoader, registry, metrics);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    PluginLoader getLoader() {
+        return loader;
+    }
+
+    /**
+     * Reads plugin entries in manifest of the jar file, manifests of parent class loader are excluded.
+     *
+     * @param manifest path of plugin manifest
+     * @return list of entries
+     * @throws IOException if occurs IO errors
+     */
+    List<PluginEntry> readEntries(String manifest) throws IOException {
+        List<PluginEntry> entries = new ArrayList<>();
+        for (String line : GafUtilities.linesOfURLs(classLoader.findResources(manifest), true, false)) {
+            PluginEntry entry = PluginEntry.parse(line);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Tests whether specified plugin is loaded by this module.
+     *
+     * @param plugin the plugin
+     * @return <tt>true</tt> if owned by this module
+     */
+    boolean owns(Plugin plugin) {
+        if (plugin instanceof LazyPlugin) {
+            return ((LazyPlugin) plugin).getLoader() == loader;
+        }
+        return plugin.getClass().getClassLoader() == classLoader;
+    }
+
+    void close() throws IOException {
+        ResourceBundle.clearCache(classLoader);
+        classLoader.close();
+    }
+}
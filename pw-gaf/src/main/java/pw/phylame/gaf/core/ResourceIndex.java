@@ -0,0 +1,514 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URISyntaxException;
+import java.net.URLClassLoader;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.FileVisitResult;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.stream.Collectors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Index of resources in class path of a class loader.
+ * <p>Central directory of each jar and content of each directory in class path are scanned
+ * once in parallel, then URL of resources are answered from a hash map in order of lookup
+ * of the class loader, without walking every jar for each query.
+ * <p>Resources of JDK and class loader not supported by {@link GafUtilities#classpathEntries(ClassLoader)}
+ * are not indexed. If the class loader and its parents are plain {@link URLClassLoader} up to the
+ * system class loader of JDK, the index is complete, and {@link #findResource(ClassLoader, String)}
+ * and {@link #findResources(ClassLoader, String)} answer misses from the index, otherwise the class
+ * loader may serve resources not listed in its class path, and they fall back to the class loader.
+ * <p>The index is rebuilt when found stale: an indexed file in directory is deleted, a resource
+ * not indexed is found by the class loader in a directory of class path, {@link #invalidate()}
+ * invoked, or a jar or directory of class path is modified. Modification is checked for misses
+ * at most once per {@link #validationInterval}.
+ */
+public final class ResourceIndex {
+    private static final Log LOG = LogFactory.getLog(ResourceIndex.class);
+
+    /**
+     * Whether resource index is enabled, <tt>false</tt> to always query the class loader.
+     */
+    public static boolean enabled = true;
+
+    /**
+     * Minimum interval in milliseconds of checking modification of class path when answering
+     * misses from complete index, <tt>0</tt> for checking every miss.
+     */
+    public static long validationInterval = 1000;
+
+    // resources in packages of JDK are not in class path
+    private static final String[] SYSTEM_PREFIXES = {
+            "java/", "javax/", "jdk/", "sun/", "com/sun/", "javafx/", "org/ietf/", "org/omg/", "org/w3c/",
+            "org/xml/", "META-INF/services/"
+    };
+
+    private static final Map<ClassLoader, ResourceIndex> indexes = new WeakHashMap<>();
+
+    private static final ResourceIndex UNSUPPORTED = new ResourceIndex(new File[0], Collections.emptyMap(),
+            false, new File[0], new long[0]);
+
+    private final File[] roots;
+
+    // name -> index of root (Integer) or indexes of roots in class path order (int[])
+    private final Map<String, Object> entries;
+
+    // whether all resources of the class loader are indexed
+    private final boolean complete;
+
+    // jars and directories of class path, and their stamps when indexed
+    private final File[] watched;
+    private final long[] stamps;
+
+    private volatile long validated = System.nanoTime();
+
+    // rebuilt when next got by of(ClassLoader)
+    private volatile boolean stale = false;
+
+    private ResourceIndex(File[] roots, Map<String, Object> entries, boolean complete, File[] watched,
+                          long[] stamps) {
+        this.roots = roots;
+        this.entries = entries;
+        this.complete = complete;
+        this.watched = watched;
+        this.stamps = stamps;
+    }
+
+    /**
+     * Marks all indexes stale, they are rebuilt when next used.
+     */
+    public static void invalidate() {
+        synchronized (indexes) {
+            for (ResourceIndex index : indexes.values()) {
+                index.stale = true;
+            }
+        }
+    }
+
+    /**
+     * Gets index of specified class loader, the index is built at first time or rebuilt if stale.
+     *
+     * @param classLoader the class loader, <tt>null</tt> for system class loader
+     * @return the index, or <tt>null</tt> if disabled or the class loader is not supported
+     */
+    public static ResourceIndex of(ClassLoader classLoader) {
+        if (!enabled) {
+            return null;
+        }
+        if (classLoader == null) {
+            classLoader = ClassLoader.getSystemClassLoader();
+        }
+        ResourceIndex index;
+        synchronized (indexes) {
+            index = indexes.get(classLoader);
+            if (index == null || index.stale) {
+                try (Timeline.Span span = Timeline.begin("resource", "buildResourceIndex")) {
+                    index = build(classLoader);
+                }
+                indexes.put(classLoader, index);
+            }
+        }
+        return index != UNSUPPORTED ? index : null;
+    }
+
+    /**
+     * Finds resource by index of the class loader, or by the class loader if not indexed.
+     *
+     * @param classLoader the class loader, <tt>null</tt> for system class loader
+     * @param name        name of the resource
+     * @return URL of the resource, or <tt>null</tt> if not found
+     */
+    public static URL findResource(ClassLoader classLoader, String name) {
+        ResourceIndex index = of(classLoader);
+        if (index != null && index.covers(name)) {
+            URL url = index.getResource(name);
+            if (url != null || index.answersMisses()) {
+                return url;
+            }
+        }
+        URL url = classLoader != null ? classLoader.getResource(name) : ClassLoader.getSystemResource(name);
+        if (url != null && index != null) {
+            index.checkMissed(url);
+        }
+        return url;
+    }
+
+    /**
+     * Finds all resources by index of the class loader, or by the class loader if not indexed.
+     *
+     * @param classLoader the class loader, <tt>null</tt> for system class loader
+     * @param name        name of the resource
+     * @return URLs of the resources
+     * @throws IOException if occurs IO errors when querying the class loader
+     */
+    public static Enumeration<URL> findResources(ClassLoader classLoader, String name) throws IOException {
+        ResourceIndex index = of(classLoader);
+        if (index != null && index.covers(name)) {
+            Enumeration<URL> urls = index.getResources(name);
+            if (urls.hasMoreElements() || index.answersMisses()) {
+                return urls;
+            }
+        }
+        Enumeration<URL> urls = classLoader != null
+                ? classLoader.getResources(name)
+                : ClassLoader.getSystemResources(name);
+        if (index == null || !urls.hasMoreElements()) {
+            return urls;
+        }
+        List<URL> list = Collections.list(urls);
+        for (URL url : list) {
+            index.checkMissed(url);
+        }
+        return Collections.enumeration(list);
+    }
+
+    /**
+     * Tests whether the resource may be indexed, resource not found in the index may be
+     * served by the class loader.
+     *
+     * @param name name of the resource
+     * @return <tt>true</tt> if may be indexed
+     */
+    public boolean covers(String name) {
+        if (name.isEmpty() || name.startsWith("/") || name.contains("..")) {
+            return false;
+        }
+        for (String prefix : SYSTEM_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests whether resource not found in the index is also not served by the class loader.
+     * <p>Modification of class path is checked if not checked in {@link #validationInterval},
+     * the index is marked stale if modified.
+     *
+     * @return <tt>true</tt> if the index is complete and not stale
+     */
+    public boolean answersMisses() {
+        if (!complete || stale) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - validated >= TimeUnit.MILLISECONDS.toNanos(validationInterval)) {
+            for (int i = 0; i < watched.length; ++i) {
+                if (stampOf(watched[i]) != stamps[i]) {
+                    LOG.debug("resource index is stale, modified: " + watched[i]);
+                    stale = true;
+                    return false;
+                }
+            }
+            validated = now;
+        }
+        return true;
+    }
+
+    // last modified time of directory, or with size of jar
+    private static long stampOf(File file) {
+        long time = file.lastModified();
+        return file.isDirectory() ? time : time * 31 + file.length();
+    }
+
+    public boolean contains(String name) {
+        return lookup(name) != null;
+    }
+
+    public URL getResource(String name) {
+        Object value = lookup(name);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Integer) {
+            return toURL((Integer) value, name);
+        }
+        for (int i : (int[]) value) {
+            URL url = toURL(i, name);
+            if (url != null) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    public Enumeration<URL> getResources(String name) {
+        Object value = lookup(name);
+        if (value == null) {
+            return Collections.emptyEnumeration();
+        }
+        if (value instanceof Integer) {
+            URL url = toURL((Integer) value, name);
+            return Collections.enumeration(url != null ? Collections.singletonList(url) : Collections.emptyList());
+        }
+        List<URL> urls = new ArrayList<>();
+        for (int i : (int[]) value) {
+            URL url = toURL(i, name);
+            if (url != null) {
+                urls.add(url);
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
+    // marks stale if the resource found by class loader is in a directory of the index
+    private void checkMissed(URL url) {
+        if (stale || !"file".equals(url.getProtocol())) {
+            return;
+        }
+        Path path;
+        try {
+            path = new File(url.toURI()).toPath();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return;
+        }
+        for (File root : roots) {
+            if (path.startsWith(root.toPath()) && root.isDirectory()) {
+                LOG.debug("resource index is stale, found by class loader: " + url);
+                stale = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns number of indexed resources.
+     *
+     * @return the number
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private Object lookup(String name) {
+        Object value = entries.get(name);
+        if (value == null && !name.endsWith("/")) {     // directory entry
+            value = entries.get(name + "/");
+        }
+        return value;
+    }
+
+    // null if the resource is not found
+    private URL toURL(int i, String name) {
+        File root = roots[i];
+        try {
+            if (root.isDirectory()) {
+                if (!new File(root, name).exists()) {     // deleted after indexed
+                    stale = true;
+                    return null;
+                }
+                return new URL(root.toURI().toURL(), encodePath(name));
+            } else {
+                return new URL("jar:" + root.toURI() + "!/" + encodePath(name));
+            }
+        } catch (MalformedURLException | URISyntaxException e) {
+            LOG.debug("cannot create URL for " + name + " in " + root, e);
+            return null;
+        }
+    }
+
+    private static String encodePath(String name) throws URISyntaxException {
+        for (int i = 0, end = name.length(); i < end; ++i) {
+            char ch = name.charAt(i);
+            if (!(ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9'
+                    || "/._-$+!*'(),;:@&=~".indexOf(ch) != -1)) {
+                return new URI(null, null, "/" + name, null).getRawPath().substring(1);
+            }
+        }
+        return name;
+    }
+
+    private static ResourceIndex build(ClassLoader classLoader) {
+        List<File> paths = GafUtilities.classpathEntries(classLoader);
+        if (paths == null) {
+            return UNSUPPORTED;
+        }
+        // scan each entry in parallel, jars in Class-Path of manifest follow the jar
+        List<List<Root>> scanned = paths.parallelStream()
+                .map(path -> {
+                    List<Root> roots = new ArrayList<>();
+                    scan(path.getAbsoluteFile(), roots, new HashSet<>());
+                    return roots;
+                })
+                .collect(Collectors.toList());
+        List<File> roots = new ArrayList<>();
+        Map<String, Object> entries = new HashMap<>();
+        Set<File> visited = new HashSet<>();
+        List<File> watched = new ArrayList<>();
+        List<Long> stamps = new ArrayList<>();
+        for (List<Root> list : scanned) {
+            for (Root root : list) {
+                if (!visited.add(root.file)) {
+                    continue;
+                }
+                int i = roots.size();
+                roots.add(root.file);
+                for (String name : root.names) {
+                    entries.merge(name, i, ResourceIndex::append);
+                }
+                watched.addAll(root.watched);
+                stamps.addAll(root.stamps);
+            }
+        }
+        long[] times = new long[stamps.size()];
+        for (int i = 0; i < times.length; ++i) {
+            times[i] = stamps.get(i);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("indexed " + entries.size() + " resources in " + roots.size() + " class path entries");
+        }
+        return new ResourceIndex(roots.toArray(new File[roots.size()]), entries, isComplete(classLoader),
+                watched.toArray(new File[watched.size()]), times);
+    }
+
+    // whether the class loader serves only resources in its class path, subclasses may serve others
+    private static boolean isComplete(ClassLoader classLoader) {
+        ClassLoader systemLoader = ClassLoader.getSystemClassLoader();
+        for (ClassLoader loader = classLoader; loader != systemLoader; loader = loader.getParent()) {
+            if (loader == null || loader.getClass() != URLClassLoader.class) {
+                return false;
+            }
+        }
+        String name = systemLoader.getClass().getName();
+        return name.startsWith("jdk.internal.loader.") || name.startsWith("sun.misc.Launcher$");
+    }
+
+    private static Object append(Object value, Object i) {
+        if (value instanceof Integer) {
+            return new int[]{(Integer) value, (Integer) i};
+        }
+        int[] old = (int[]) value;
+        int[] indexes = new int[old.length + 1];
+        System.arraycopy(old, 0, indexes, 0, old.length);
+        indexes[old.length] = (Integer) i;
+        return indexes;
+    }
+
+    private static void scan(File file, List<Root> roots, Set<File> visited) {
+        if (!visited.add(file)) {
+            return;
+        }
+        if (file.isDirectory()) {
+            Root root = new Root(file);
+            scanDirectory(file.toPath(), root);
+            roots.add(root);
+        } else if (file.isFile()) {
+            Root root = new Root(file);
+            root.watch(file);
+            List<String> names = new ArrayList<>();
+            List<File> extra = new ArrayList<>();
+            try (JarFile jar = new JarFile(file, false)) {
+                Enumeration<? extends ZipEntry> it = jar.entries();
+                while (it.hasMoreElements()) {
+                    names.add(it.nextElement().getName());
+                }
+                Manifest manifest = jar.getManifest();
+                String classPath = manifest != null
+                        ? manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH)
+                        : null;
+                if (classPath != null) {
+                    URL base = file.toURI().toURL();
+                    for (String path : classPath.trim().split("\\s+")) {
+                        URL url = new URL(base, path);
+                        if ("file".equals(url.getProtocol())) {
+                            extra.add(new File(url.toURI()));
+                        }
+                    }
+                }
+            } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+                LOG.debug("cannot index class path entry: " + file, e);
+                return;
+            }
+            root.names.addAll(names);
+            roots.add(root);
+            for (File path : extra) {
+                scan(path.getAbsoluteFile(), roots, visited);
+            }
+        }
+    }
+
+    private static void scanDirectory(Path dir, Root root) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                    if (!path.equals(dir)) {
+                        root.names.add(toName(path) + "/");
+                    }
+                    root.watch(path.toFile());      // modified when its entries added or removed
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    root.names.add(toName(path));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private String toName(Path path) {
+                    return dir.relativize(path).toString().replace(File.separatorChar, '/');
+                }
+            });
+        } catch (IOException e) {
+            LOG.debug("cannot index class path directory: " + dir, e);
+        }
+    }
+
+    private static class Root {
+        private final File file;
+        private final List<String> names = new ArrayList<>();
+        private final List<File> watched = new ArrayList<>();
+        private final List<Long> stamps = new ArrayList<>();
+
+        private Root(File file) {
+            this.file = file;
+        }
+
+        private void watch(File file) {
+            watched.add(file);
+            stamps.add(stampOf(file));
+        }
+    }
+}
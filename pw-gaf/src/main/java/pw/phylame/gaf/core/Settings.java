@@ -85,7 +85,8 @@ public class Settings {
             return;
         }
 
-        try (FileInputStream in = new FileInputStream(file)) {
+        try (FileInputStream in = new FileInputStream(file);
+             GafEvents.Scope event = GafEvents.settings("load", path)) {
             load(in);
         }
     }
@@ -130,10 +131,44 @@ public class Settings {
      * Updates settings content to setting file.
      */
     public void sync() throws IOException {
-        ensureSettingsHomeExisted();
-        FileOutputStream out = new FileOutputStream(path);
-        store(out);
-        out.close();
+        long start = System.nanoTime();
+        try (GafEvents.Scope event = GafEvents.settings("sync", path)) {
+            ensureSettingsHomeExisted();
+            FileOutputStream out = new FileOutputStream(path);
+            store(out);
+            out.close();
+        } finally {
+            Metrics.Histogram timer = syncTimer();
+            if (timer != null) {
+                timer.recordSince(start);
+            }
+        }
+    }
+
+    // timer of syncing in metrics of shared application, null if no application
+    private static Metrics.Histogram syncTimer() {
+        Application app = Application.sharedApplication();
+        Metrics metrics = app != null ? app.getMetrics() : null;
+        if (metrics == null) {
+            return null;
+        }
+        SyncTimer cached = syncTimer;
+        if (cached == null || cached.metrics != metrics) {
+            syncTimer = cached = new SyncTimer(metrics, metrics.timer("gaf_settings_sync_seconds"));
+        }
+        return cached.timer;
+    }
+
+    private static volatile SyncTimer syncTimer = null;
+
+    private static final class SyncTimer {
+        private final Metrics metrics;
+        private final Metrics.Histogram timer;
+
+        private SyncTimer(Metrics metrics, Metrics.Histogram timer) {
+            this.metrics = metrics;
+            this.timer = timer;
+        }
     }
 
     protected void syncIfNeed() {
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import java.io.*;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Timeline of application phases.
+ * <p>Recording is enabled only if system property <tt>pw.gaf.trace</tt> is set to path of
+ * trace file, the timeline is written to the file in Chrome trace format when JVM exits.
+ * <p>Usage:
+ * <pre>
+ * try (Timeline.Span span = Timeline.begin("phase")) {
+ *     // do something
+ * }
+ * </pre>
+ */
+public final class Timeline {
+    private static final Log LOG = LogFactory.getLog(Timeline.class);
+
+    /**
+     * Name of system property for path of trace file.
+     */
+    public static final String TRACE_PROPERTY = "pw.gaf.trace";
+
+    private static final String traceFile = System.getProperty(TRACE_PROPERTY);
+
+    private static final boolean enabled = traceFile != null && !traceFile.isEmpty();
+
+    // origin of timestamps
+    private static final long origin = System.nanoTime();
+
+    private static final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+
+    private static final Span NOOP = new Span(null, null);
+
+    static {
+        if (enabled) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    export(new File(traceFile));
+                } catch (IOException e) {
+                    LOG.error("cannot write trace file: " + traceFile, e);
+                }
+            }, "gaf-timeline"));
+        }
+    }
+
+    private Timeline() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Begins a span of the timeline.
+     *
+     * @param name name of the span
+     * @return the span, must be closed when the phase ended
+     */
+    public static Span begin(String name) {
+        return begin("app", name);
+    }
+
+    /**
+     * Begins a span of the timeline.
+     *
+     * @param category category of the span
+     * @param name     name of the span
+     * @return the span, must be closed when the phase ended
+     */
+    public static Span begin(String category, String name) {
+        return enabled ? new Span(category, name) : NOOP;
+    }
+
+    /**
+     * Writes recorded spans to specified file in Chrome trace format.
+     *
+     * @param file the output file
+     * @throws IOException if occurs IO errors
+     */
+    public static void export(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            Map<Long, String> threads = new HashMap<>();
+            long now = System.nanoTime() - origin;
+            boolean first = true;
+            for (Span span : spans) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                threads.put(span.threadId, span.threadName);
+                writer.write("\n{\"ph\":\"X\",\"pid\":1,\"tid\":" + span.threadId
+                        + ",\"cat\":" + quote(span.category)
+                        + ",\"name\":" + quote(span.name)
+                        + ",\"ts\":" + micros(span.start)
+                        + ",\"dur\":" + micros((span.end != 0 ? span.end : now) - span.start) + "}");
+            }
+            for (Map.Entry<Long, String> entry : threads.entrySet()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writer.write("\n{\"ph\":\"M\",\"pid\":1,\"tid\":" + entry.getKey()
+                        + ",\"name\":\"thread_name\",\"args\":{\"name\":" + quote(entry.getValue()) + "}}");
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
+
+    static String quote(String str) {
+        StringBuilder b = new StringBuilder(str.length() + 2).append('"');
+        for (int i = 0, end = str.length(); i < end; ++i) {
+            char ch = str.charAt(i);
+            switch (ch) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        b.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        b.append(ch);
+                    }
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    /**
+     * A timed phase of the timeline, spans in one thread are nested by their time.
+     * <p>Span not closed when exporting is ended at the exporting time.
+     */
+    public static final class Span implements AutoCloseable {
+        private final String category;
+        private final String name;
+        private final long threadId;
+        private final String threadName;
+        private final long start;
+        private volatile long end;
+
+        private Span(String category, String name) {
+            this.category = category;
+            this.name = name;
+            if (name != null) {
+                Thread thread = Thread.currentThread();
+                threadId = thread.getId();
+                threadName = thread.getName();
+                start = System.nanoTime() - origin;
+                spans.add(this);
+            } else {
+                threadId = 0;
+                threadName = null;
+                start = 0;
+            }
+        }
+
+        /**
+         * Ends the span.
+         */
+        @Override
+        public void close() {
+            if (name != null && end == 0) {
+                end = Math.max(System.nanoTime() - origin, start + 1);
+            }
+        }
+    }
+}
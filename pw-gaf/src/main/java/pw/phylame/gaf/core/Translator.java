@@ -18,8 +18,13 @@
 
 package pw.phylame.gaf.core;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.PropertyResourceBundle;
 import java.util.MissingResourceException;
 
 /**
@@ -29,15 +34,20 @@ public class Translator implements I18nSupport {
     private ResourceBundle bundle;
 
     public Translator(String path) {
-        bundle = ResourceBundle.getBundle(path);
+        this(path, Locale.getDefault());
     }
 
     public Translator(String path, Locale locale) {
-        bundle = ResourceBundle.getBundle(path, locale);
+        this(path, locale, Translator.class.getClassLoader());
     }
 
     public Translator(String path, Locale locale, ClassLoader classLoader) {
-        bundle = ResourceBundle.getBundle(path, locale, classLoader);
+        ResourceIndex index = ResourceIndex.of(classLoader);
+        if (index != null) {
+            bundle = ResourceBundle.getBundle(path, locale, classLoader, new IndexedControl(index));
+        } else {
+            bundle = ResourceBundle.getBundle(path, locale, classLoader);
+        }
     }
 
     public ResourceBundle getBundle() {
@@ -52,4 +62,43 @@ public class Translator implements I18nSupport {
     public String fetchString(String key) throws MissingResourceException {
         return bundle.getString(key);
     }
+
+    // loads properties bundles found in the index, and answers misses of complete index,
+    // without querying the class loader
+    private static class IndexedControl extends ResourceBundle.Control {
+        private final ResourceIndex index;
+
+        private IndexedControl(ResourceIndex index) {
+            this.index = index;
+        }
+
+        @Override
+        public ResourceBundle newBundle(String baseName, Locale locale, String format, ClassLoader loader,
+                                        boolean reload) throws IllegalAccessException, InstantiationException,
+                IOException {
+            String bundleName = toBundleName(baseName, locale);
+            if ("java.class".equals(format)) {
+                String resourceName = toResourceName(bundleName, "class");
+                if (index.covers(resourceName) && !index.contains(resourceName) && index.answersMisses()) {
+                    return null;    // not loading class from each jar
+                }
+            } else if ("java.properties".equals(format) && !reload) {
+                String resourceName = toResourceName(bundleName, "properties");
+                if (index.covers(resourceName)) {
+                    URL url = index.getResource(resourceName);
+                    if (url != null) {
+                        URLConnection connection = url.openConnection();
+                        connection.setUseCaches(false);
+                        try (InputStream in = connection.getInputStream()) {
+                            return new PropertyResourceBundle(in);
+                        }
+                    } else if (index.answersMisses()) {
+                        return null;
+                    }
+                }
+            }
+            // not indexed resources may be served by the class loader
+            return super.newBundle(baseName, locale, format, loader, reload);
+        }
+    }
 }
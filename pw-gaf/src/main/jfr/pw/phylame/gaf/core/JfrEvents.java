@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Peng Wan <phylame@163.com>
+ *
+ * This file is part of PW GAF.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pw.phylame.gaf.core;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Enabled;
+import jdk.jfr.Category;
+import jdk.jfr.StackTrace;
+
+/**
+ * Provider of JFR events, loaded by {@link GafEvents} only if JFR is supported.
+ */
+final class JfrEvents implements GafEvents.Provider {
+    private static final GafEvents.Scope NOOP = () -> {
+    };
+
+    @Override
+    public GafEvents.Scope plugin(String operation, String plugin) {
+        PluginEvent event = new PluginEvent();
+        if (!event.isEnabled()) {
+            return NOOP;
+        }
+        event.operation = operation;
+        event.plugin = plugin;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public GafEvents.Scope command(String source, String command) {
+        CommandEvent event = new CommandEvent();
+        if (!event.isEnabled()) {
+            return NOOP;
+        }
+        event.source = source;
+        event.command = command;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public GafEvents.Scope settings(String operation, String path) {
+        SettingsEvent event = new SettingsEvent();
+        if (!event.isEnabled()) {
+            return NOOP;
+        }
+        event.operation = operation;
+        event.path = path;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public GafEvents.Scope resource(String type, String path) {
+        ResourceEvent event = new ResourceEvent();
+        if (!event.isEnabled()) {
+            return NOOP;
+        }
+        event.type = type;
+        event.path = path;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public GafEvents.Scope undo(String operation, String message) {
+        UndoEvent event = new UndoEvent();
+        if (!event.isEnabled()) {
+            return NOOP;
+        }
+        event.operation = operation;
+        event.message = message;
+        event.begin();
+        return event;
+    }
+
+    private abstract static class ScopedEvent extends Event implements GafEvents.Scope {
+        @Override
+        public void close() {
+            end();
+            commit();
+        }
+    }
+
+    @Name("pw.gaf.Plugin")
+    @Label("Plugin")
+    @Category("PW GAF")
+    @Enabled(false)
+    @StackTrace(false)
+    private static final class PluginEvent extends ScopedEvent {
+        @Label("Operation")
+        String operation;
+
+        @Label("Plugin")
+        String plugin;
+    }
+
+    @Name("pw.gaf.Command")
+    @Label("Command")
+    @Category("PW GAF")
+    @Enabled(false)
+    @StackTrace(false)
+    private static final class CommandEvent extends ScopedEvent {
+        @Label("Source")
+        String source;
+
+        @Label("Command")
+        String command;
+    }
+
+    @Name("pw.gaf.Settings")
+    @Label("Settings")
+    @Category("PW GAF")
+    @Enabled(false)
+    @StackTrace(false)
+    private static final class SettingsEvent extends ScopedEvent {
+        @Label("Operation")
+        String operation;
+
+        @Label("Path")
+        String path;
+    }
+
+    @Name("pw.gaf.Resource")
+    @Label("Resource")
+    @Category("PW GAF")
+    @Enabled(false)
+    @StackTrace(false)
+    private static final class ResourceEvent extends ScopedEvent {
+        @Label("Type")
+        String type;
+
+        @Label("Path")
+        String path;
+    }
+
+    @Name("pw.gaf.Undo")
+    @Label("Undo")
+    @Category("PW GAF")
+    @Enabled(false)
+    @StackTrace(false)
+    private static final class UndoEvent extends ScopedEvent {
+        @Label("Operation")
+        String operation;
+
+        @Label("Message")
+        String message;
+    }
+}
@@ -24,6 +24,8 @@ import javax.swing.SwingUtilities;
 import java.util.LinkedList;
 
 import pw.phylame.gaf.core.Plugin;
+import pw.phylame.gaf.core.Timeline;
+import pw.phylame.gaf.core.PluginEntry;
 import pw.phylame.gaf.core.Application;
 
 /**
@@ -115,6 +117,33 @@ IApplication<FORM extends IForm> extends Application implements ICommandListener
         return super.preparePlugin(plugin);
     }
 
+    @Override
+    protected void pluginActivated(Plugin plugin) {
+        super.pluginActivated(plugin);
+        if (plugin instanceof IPlugin) {
+            Runnable task = () -> {
+                if (form == null) {     // UI not created
+                    iPlugins.add((IPlugin) plugin);
+                } else {
+                    ((IPlugin) plugin).performUI();
+                }
+            };
+            if (SwingUtilities.isEventDispatchThread()) {
+                task.run();
+            } else {
+                SwingUtilities.invokeLater(task);
+            }
+        }
+    }
+
+    @Override
+    protected void pluginUnloaded(Plugin plugin) {
+        super.pluginUnloaded(plugin);
+        if (plugin instanceof IPlugin) {
+            iPlugins.remove(plugin);
+        }
+    }
+
     protected abstract FORM createForm();
 
     public FORM getForm() {
@@ -136,16 +165,26 @@ IApplication<FORM extends IForm> extends Application implements ICommandListener
 
     @Override
     public void run() {
-        form = createForm();
-        if (form == null) {
-            throw new AssertionError("Implement of 'createForm' must return valid form");
+        try (Timeline.Span span = Timeline.begin("run")) {
+            try (Timeline.Span s = Timeline.begin("createForm")) {
+                form = createForm();
+            }
+            if (form == null) {
+                throw new AssertionError("Implement of 'createForm' must return valid form");
+            }
+            for (IPlugin plugin : iPlugins) {
+                try (Timeline.Span s = Timeline.begin("plugin", "performUI " + plugin.getClass().getName())) {
+                    plugin.performUI();
+                }
+            }
         }
-        iPlugins.forEach(IPlugin::performUI);
     }
 
     @Override
     public final void start() {
-        onStart();
+        try (Timeline.Span span = Timeline.begin("onStart")) {
+            onStart();
+        }
         SwingUtilities.invokeLater(this);
     }
 
@@ -154,12 +193,15 @@ IApplication<FORM extends IForm> extends Application implements ICommandListener
         if (delegate == null) {
             throw new RuntimeException("no delegate of dispatcher specified");
         }
+        activatePlugins(PluginEntry.COMMAND_TRIGGER + command);
         delegate.commandPerformed(command);
     }
 
     @Override
     protected void onTerminated() {
-        form.destroy();
+        if (form != null) {
+            form.destroy();
+        }
         super.onTerminated();
     }
 
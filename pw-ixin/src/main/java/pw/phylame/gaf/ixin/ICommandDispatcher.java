@@ -22,12 +22,16 @@ import java.util.HashMap;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
 
+import pw.phylame.gaf.core.GafEvents;
+import pw.phylame.gaf.core.Metrics;
+
 /**
  * A listener dispatch commands to delegate object.
  */
 public class ICommandDispatcher implements ICommandListener {
     private ICommandListener delegate;
     private HashMap<String, Method> methodCaches = new HashMap<>();
+    private HashMap<String, Metrics.Histogram> timerCaches = new HashMap<>();
 
     public ICommandListener getDelegate() {
         return delegate;
@@ -39,10 +43,15 @@ public class ICommandDispatcher implements ICommandListener {
         }
         this.delegate = delegate;
         Method[] methods = delegate.getClass().getDeclaredMethods();
+        IApplication app = IApplication.sharedIApplication();
         for (Method method : methods) {
             ICommandMethod commonItem = method.getDeclaredAnnotation(ICommandMethod.class);
             if (commonItem != null) {
                 methodCaches.put(commonItem.value(), method);
+                if (app != null) {
+                    timerCaches.put(commonItem.value(),
+                            app.getMetrics().timer("gaf_command_seconds", "source", "ixin", "command", commonItem.value()));
+                }
             }
         }
     }
@@ -53,10 +62,16 @@ public class ICommandDispatcher implements ICommandListener {
         if (method == null) {
             throw new RuntimeException("no such method of delegate for command: " + command);
         }
-        try {
+        long start = System.nanoTime();
+        try (GafEvents.Scope event = GafEvents.command("ixin", command)) {
             method.invoke(delegate);
         } catch (IllegalAccessException | InvocationTargetException e) {
             throw new RuntimeException("cannot execute command: " + command, e);
+        } finally {
+            Metrics.Histogram timer = timerCaches.get(command);
+            if (timer != null) {
+                timer.recordSince(start);
+            }
         }
     }
 }
@@ -25,7 +25,7 @@ import pw.phylame.gaf.core.Plugin;
  */
 public interface IPlugin extends Plugin {
     /**
-     * Invoked after creating UI.
+     * Invoked after creating UI, plugins are performed in order of their dependencies.
      */
     void performUI();
 }
@@ -25,6 +25,9 @@ import java.awt.Toolkit;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 
+import pw.phylame.gaf.core.GafEvents;
+import pw.phylame.gaf.core.ResourceIndex;
+
 public class IResource {
     public static ClassLoader classLoader = IResource.class.getClassLoader();
 
@@ -55,7 +58,9 @@ public class IResource {
         }
         URL url = findFile(path, null);
         if (url != null) {
-            icon = new ImageIcon(url);
+            try (GafEvents.Scope event = GafEvents.resource("icon", path)) {
+                icon = new ImageIcon(url);
+            }
             iconCaches.put(path, icon);
         }
         return icon;
@@ -73,7 +78,9 @@ public class IResource {
         }
         URL url = findFile(path, null);
         if (url != null) {
-            image = Toolkit.getDefaultToolkit().getImage(url);
+            try (GafEvents.Scope event = GafEvents.resource("image", path)) {
+                image = Toolkit.getDefaultToolkit().getImage(url);
+            }
             imageCaches.put(path, image);
         }
         return image;
@@ -84,7 +91,7 @@ public class IResource {
     }
 
     public URL findFile(String path, String suffix) {
-        return classLoader.getResource(baseDir + convertPath(path, suffix));
+        return ResourceIndex.findResource(classLoader, baseDir + convertPath(path, suffix));
     }
 
     private static String convertPath(String path, String suffix) {
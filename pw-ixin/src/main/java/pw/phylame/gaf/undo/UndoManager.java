@@ -20,6 +20,8 @@ package pw.phylame.gaf.undo;
 
 import java.util.LinkedList;
 
+import pw.phylame.gaf.core.GafEvents;
+
 public class UndoManager {
     private LinkedList<UndoTask> undoStack = new LinkedList<>();
     private LinkedList<RedoTask> redoStack = new LinkedList<>();
@@ -49,7 +51,10 @@ public class UndoManager {
         if (!canUndo()) {
             throw new RuntimeException("no more undo task");
         }
-        undoStack.pop().undo();
+        UndoTask task = undoStack.pop();
+        try (GafEvents.Scope event = GafEvents.undo("undo", task.getMessage())) {
+            task.undo();
+        }
     }
 
     public String getPresentUndoMessage() {
@@ -64,7 +69,10 @@ public class UndoManager {
         if (!canRedo()) {
             throw new RuntimeException("no more redo task");
         }
-        redoStack.pop().redo();
+        RedoTask task = redoStack.pop();
+        try (GafEvents.Scope event = GafEvents.undo("redo", task.getMessage())) {
+            task.redo();
+        }
     }
 
     public String getPresentRedoMessage() {